@@ -0,0 +1,676 @@
+package com.andxor.web2sign.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+
+/**
+ * Load test harness: boots {@link Hello} and {@link Store} in an embedded Jetty on loopback, with a temporary
+ * <code>root</code> and a generated <code>config.json</code>, then drives a mix of session creation, list polling,
+ * downloads and signed-version uploads from many concurrent clients.
+ * <p>
+ * Results (throughput, latency percentiles, heap and file descriptors) are printed and written as JSON; if a
+ * baseline exists the run fails when any of them regressed beyond the threshold, else the baseline is created.
+ * Results also record the parameters of the run, and a baseline recorded with different ones is not compared to.
+ * Everything is tuned with <code>loadtest.*</code> system properties, see the constants below.
+ * <p>
+ * With <code>loadtest.nodes</code> greater than one, that many nodes are started as separate JVMs on loopback,
+ * forming a {@link Cluster} with shared session storage, and clients send each request to a random node; in this
+ * mode heap and file descriptors are only measured for the clients.
+ */
+public class LoadTest {
+
+    private static final int CLIENTS = Integer.getInteger("loadtest.clients", 32);
+    private static final int NODES = Integer.getInteger("loadtest.nodes", 1);
+    private static final int WARMUP = Integer.getInteger("loadtest.warmup", 5); // seconds
+    private static final int DURATION = Integer.getInteger("loadtest.duration", 20); // seconds
+    private static final int FILES = Integer.getInteger("loadtest.files", 4);
+    private static final int FILE_SIZE = Integer.getInteger("loadtest.fileSize", 256 * 1024);
+    private static final boolean JOURNAL = Boolean.getBoolean("loadtest.journal");
+    private static final boolean VIRTUAL_THREADS = Boolean.getBoolean("loadtest.virtualThreads");
+    private static final boolean REDIRECT = Boolean.getBoolean("loadtest.redirect");
+    private static final long DISK_BUDGET = Long.getLong("loadtest.diskBudget", 0); // bytes, 0 for the default
+    private static final int DELTA_RATIO = Integer.getInteger("loadtest.deltaRatio", 50); // percent of uploads
+    private static final int CHUNKED_RATIO = Integer.getInteger("loadtest.chunkedRatio", 10); // percent of uploads
+    private static final int CHUNK_SIZE = Integer.getInteger("loadtest.chunkSize", 64 * 1024);
+    private static final String ACCEPT_ENCODING = System.getProperty("loadtest.acceptEncoding", "gzip, deflate"); // empty for none
+    private static final int UPLOADS_PER_SESSION = Integer.getInteger("loadtest.uploadsPerSession", 10);
+    private static final double THRESHOLD = Double.parseDouble(System.getProperty("loadtest.threshold", "0.25"));
+    private static final String WEB_CONTENT = System.getProperty("loadtest.webContent", "WebContent");
+    private static final String RESULT = System.getProperty("loadtest.result", "build/loadtest/result.json");
+    private static final String BASELINE = System.getProperty("loadtest.baseline",
+            NODES > 1 ? "loadtest-baseline-" + NODES + "nodes.json" : "loadtest-baseline.json");
+
+    private static final String PREFIX = "lt";
+    private static final Pattern TOKEN = Pattern.compile("token=(" + PREFIX + "-[0-9A-Za-z]+)");
+
+    private enum Op { HELLO, LIST, DOWNLOAD, UPLOAD, CHUNK }
+
+    private static volatile boolean recording;
+    private static volatile boolean running = true;
+
+    /** Latencies of a single client, merged at the end to avoid any contention while measuring. */
+    private static final class Samples {
+
+        private final long[][] nanos = new long[Op.values().length][];
+        private final int[] count = new int[Op.values().length];
+        private long errors, rejected, received;
+
+        Samples() {
+            for (int i = 0; i < nanos.length; ++i)
+                nanos[i] = new long[1024];
+        }
+
+        void add(Op op, long ns) {
+            if (!recording)
+                return;
+            int i = op.ordinal();
+            if (count[i] == nanos[i].length)
+                nanos[i] = Arrays.copyOf(nanos[i], count[i] * 2);
+            nanos[i][count[i]++] = ns;
+        }
+
+        void error(int status) {
+            if (!recording)
+                return;
+            if (status == 429 || status == 503)
+                ++rejected; // admission control, not failures
+            else
+                ++errors;
+        }
+
+    }
+
+    private static final class Response {
+        final int status;
+        final byte[] body;
+        final String location;
+
+        Response(int status, byte[] body, String location) {
+            this.status = status;
+            this.body = body;
+            this.location = location;
+        }
+    }
+
+    private static final class Client implements Runnable {
+
+        private final String[] bases;
+        private final Samples samples = new Samples();
+        private final Random rnd;
+        private String token;
+        private int count, uploads;
+        private long uploaded; // during the whole run, not only while recording
+        private int docIndex = -1;
+        private byte[] doc;
+
+        Client(String[] bases, long seed) {
+            this.bases = bases;
+            this.rnd = new Random(seed);
+        }
+
+        /** Sends a request, with <code>headers</code> as name/value pairs (<code>null</code> values are skipped). */
+        private Response call(Op op, String method, String path, byte[] body, String... headers) throws IOException {
+            long start = System.nanoTime();
+            HttpURLConnection c = (HttpURLConnection) new URL(bases[rnd.nextInt(bases.length)] + path).openConnection();
+            c.setRequestMethod(method);
+            c.setInstanceFollowRedirects(false);
+            if (!ACCEPT_ENCODING.isEmpty())
+                c.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+            for (int i = 0; i < headers.length; i += 2)
+                if (headers[i + 1] != null)
+                    c.setRequestProperty(headers[i], headers[i + 1]);
+            if (body != null) {
+                c.setDoOutput(true);
+                c.setFixedLengthStreamingMode(body.length);
+                OutputStream os = c.getOutputStream();
+                os.write(body);
+                os.close();
+            }
+            int status = c.getResponseCode();
+            InputStream is = (status < 400) ? c.getInputStream() : c.getErrorStream();
+            byte[] data = (is == null) ? new byte[0] : Util.inToArray(is);
+            if (is != null)
+                is.close(); // fully read and closed, so the connection is kept alive
+            if (recording)
+                samples.received += data.length;
+            String encoding = c.getHeaderField("Content-Encoding");
+            if ("gzip".equals(encoding))
+                data = Util.inToArray(new GZIPInputStream(new ByteArrayInputStream(data)));
+            else if ("deflate".equals(encoding))
+                data = Util.inToArray(new InflaterInputStream(new ByteArrayInputStream(data)));
+            if (status < 400)
+                samples.add(op, System.nanoTime() - start);
+            else
+                samples.error(status);
+            return new Response(status, data, c.getHeaderField("Location"));
+        }
+
+        private void hello() throws IOException {
+            Response r = call(Op.HELLO, "GET", "/hello", null);
+            // either the page with the iframe, or a redirect to the same URL
+            Matcher m = TOKEN.matcher(r.status == 302 ? r.location : new String(r.body, StandardCharsets.UTF_8));
+            token = ((r.status == 200 || r.status == 302) && m.find()) ? m.group(1) : null;
+            count = FILES;
+            uploads = 0;
+            doc = null;
+        }
+
+        private void list() throws Exception {
+            Response r = call(Op.LIST, "GET", "/api/" + token + "/", null);
+            if (r.status == 200)
+                count = new JSON.Parser(new String(r.body, StandardCharsets.UTF_8)).getObject().getArray("files").length;
+            else if (r.status == 400)
+                token = null; // session was evicted
+        }
+
+        private void download() throws IOException {
+            int n = rnd.nextInt(count);
+            Response r = call(Op.DOWNLOAD, "GET", "/api/" + token + "/" + n, null);
+            if (r.status == 200) {
+                docIndex = n;
+                doc = r.body;
+            } else if (r.status == 400)
+                token = null;
+        }
+
+        private void upload() throws Exception {
+            // simulates an incremental update, as done by a PDF signature
+            byte[] update = new byte[1024 + rnd.nextInt(8192)];
+            rnd.nextBytes(update);
+            byte[] body = Arrays.copyOf(doc, doc.length + update.length);
+            System.arraycopy(update, 0, body, doc.length, update.length);
+            String hash = Util.toHex(Util.arrayToHash(doc));
+            String params = JSON.encode(JSON.obj(
+                    "Hash", hash,
+                    "Hash-New", Util.toHex(Util.arrayToHash(body)),
+                    "Operation", "sign",
+                    "Field", "Signature1"), false);
+            int mode = rnd.nextInt(100);
+            Response r;
+            if (mode < CHUNKED_RATIO)
+                r = chunked(body, params);
+            else if (mode < CHUNKED_RATIO + DELTA_RATIO)
+                r = call(Op.UPLOAD, "POST", "/api/" + token + "/" + docIndex, update, "X-W2S-JSON", params, "X-W2S-Delta", hash);
+            else
+                r = call(Op.UPLOAD, "POST", "/api/" + token + "/" + docIndex, body, "X-W2S-JSON", params);
+            if (r.status == 200) {
+                docIndex = count++;
+                doc = body;
+                ++uploads;
+                ++uploaded;
+            } else if (r.status == 400)
+                token = null;
+        }
+
+        /** Resumable upload, which also asks for the committed offset once, as done when resuming. */
+        private Response chunked(byte[] body, String params) throws Exception {
+            String path = "/api/" + token + "/" + docIndex;
+            Response r = call(Op.CHUNK, "PUT", path, new byte[0], "Content-Range", "bytes */" + body.length);
+            if (r.status != 200)
+                return r;
+            int start = new JSON.Parser(new String(r.body, StandardCharsets.UTF_8)).getObject().getNumber("offset").intValue();
+            for (int off = start; r.status == 200 && off < body.length; off += CHUNK_SIZE) {
+                byte[] chunk = Arrays.copyOfRange(body, off, Math.min(body.length, off + CHUNK_SIZE));
+                boolean last = off + chunk.length == body.length;
+                r = call(last ? Op.UPLOAD : Op.CHUNK, "PUT", path, chunk,
+                        "Content-Range", "bytes " + off + "-" + (off + chunk.length - 1) + "/" + body.length,
+                        "X-W2S-Chunk-Hash", Util.toHex(Util.arrayToHash(chunk)),
+                        "X-W2S-JSON", last ? params : null);
+            }
+            return r;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    int r = rnd.nextInt(100);
+                    if (token == null || uploads >= UPLOADS_PER_SESSION || r < 5)
+                        hello();
+                    else if (r < 55)
+                        list();
+                    else if (r < 85 || doc == null)
+                        download();
+                    else
+                        upload();
+                } catch (Exception e) {
+                    if (recording)
+                        ++samples.errors;
+                    token = null;
+                }
+            }
+        }
+
+    }
+
+    /** Random data, like compressed streams, interleaved with the (compressible) object syntax. */
+    private static byte[] fakePdf(Random rnd) {
+        byte[] data = new byte[FILE_SIZE];
+        rnd.nextBytes(data);
+        for (int pos = 0, n = 0; pos < data.length; pos += 2048, ++n) {
+            byte[] obj = (n + " 0 obj\n<< /Type /Page /Parent 2 0 R /Resources << /Font << /F1 5 0 R >> >> "
+                    + "/MediaBox [0 0 595 842] /Contents " + (n + 1) + " 0 R >>\nendobj\n").getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < 1024 && pos + i < data.length; ++i)
+                data[pos + i] = obj[i % obj.length];
+        }
+        byte[] head = "%PDF-1.7\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] tail = "\n%%EOF\n".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(head, 0, data, 0, head.length);
+        System.arraycopy(tail, 0, data, data.length - tail.length, tail.length);
+        return data;
+    }
+
+    private static List<JSON.Obj> setup(File root, Random rnd) throws IOException {
+        List<JSON.Obj> files = new ArrayList<JSON.Obj>();
+        for (int i = 0; i < FILES; ++i) {
+            byte[] data = fakePdf(rnd);
+            String name = "doc" + i + ".pdf";
+            FileOutputStream fos = new FileOutputStream(new File(root, name));
+            fos.write(data);
+            fos.close();
+            files.add(JSON.obj(
+                    "filename", name,
+                    "hash", Util.toHex(Util.arrayToHash(data)),
+                    "signature", JSON.obj("*def", JSON.obj("enabled", true, "graphometric", ""))));
+        }
+        return files;
+    }
+
+    private static File config(File root, String name, List<JSON.Obj> files, JSON.Obj cluster) throws IOException {
+        File config = new File(root, name);
+        JSON.Obj conf = JSON.obj(
+                "url", "/w2s/?token=" + PREFIX,
+                "root", root.getAbsolutePath(),
+                "files", files);
+        if (VIRTUAL_THREADS)
+            conf.put("virtualThreads", true);
+        if (REDIRECT)
+            conf.put("redirect", true);
+        if (DISK_BUDGET > 0)
+            conf.put("budget", JSON.obj("disk", DISK_BUDGET, "wait", 100));
+        if (JOURNAL)
+            conf.put("journal", JSON.obj("dir", new File(root, "journal-" + name).getAbsolutePath()));
+        if (cluster != null)
+            conf.put("cluster", cluster);
+        write(config.getPath(), conf);
+        return config;
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c : children)
+                delete(c);
+        if (!f.delete())
+            System.err.println("Cannot delete: " + f);
+    }
+
+    private static int openFiles() {
+        String[] fds = new File("/proc/self/fd").list();
+        return (fds == null) ? -1 : fds.length;
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    private static JSON.Obj latencies(long[] sorted) {
+        return JSON.obj(
+                "count", sorted.length,
+                "p50", percentile(sorted, 0.50) / 1000,
+                "p99", percentile(sorted, 0.99) / 1000,
+                "p999", percentile(sorted, 0.999) / 1000);
+    }
+
+    private static JSON.Obj report(List<Client> clients, long elapsed, long peakHeap, int peakFds, int fdsBefore) {
+        JSON.Obj ops = new JSON.Obj();
+        long[] all = new long[0];
+        long errors = 0, rejected = 0, received = 0;
+        for (Op op : Op.values()) {
+            long[] merged = new long[0];
+            for (Client c : clients) {
+                int n = c.samples.count[op.ordinal()];
+                int start = merged.length;
+                merged = Arrays.copyOf(merged, start + n);
+                System.arraycopy(c.samples.nanos[op.ordinal()], 0, merged, start, n);
+            }
+            Arrays.sort(merged);
+            ops.put(op.name().toLowerCase(), latencies(merged));
+            int start = all.length;
+            all = Arrays.copyOf(all, start + merged.length);
+            System.arraycopy(merged, 0, all, start, merged.length);
+        }
+        for (Client c : clients) {
+            errors += c.samples.errors;
+            rejected += c.samples.rejected;
+            received += c.samples.received;
+        }
+        Arrays.sort(all);
+        System.gc();
+        return JSON.obj(
+                "parameters", parameters(),
+                "platform", Platform.version(),
+                "clients", clients.size(),
+                "seconds", elapsed / 1e9,
+                "throughput", Math.round(all.length * 1e9 / elapsed),
+                "errors", errors,
+                "rejected", rejected,
+                "bytesPerResponse", all.length == 0 ? 0 : received / all.length, // as received, before decoding
+                "latency", latencies(all), // microseconds
+                "operations", ops,
+                "heapPeak", peakHeap,
+                "heapRetained", usedHeap(),
+                "fdBefore", fdsBefore,
+                "fdPeak", peakFds);
+    }
+
+    /** The parameters which affect the results, as they can only be compared between runs with the same ones. */
+    private static JSON.Obj parameters() {
+        return JSON.obj(
+                "java", System.getProperty("java.specification.version"),
+                "nodes", NODES,
+                "clients", CLIENTS,
+                "warmup", WARMUP,
+                "duration", DURATION,
+                "files", FILES,
+                "fileSize", FILE_SIZE,
+                "journal", JOURNAL,
+                "virtualThreads", VIRTUAL_THREADS,
+                "redirect", REDIRECT,
+                "diskBudget", DISK_BUDGET,
+                "deltaRatio", DELTA_RATIO,
+                "chunkedRatio", CHUNKED_RATIO,
+                "chunkSize", CHUNK_SIZE,
+                "acceptEncoding", ACCEPT_ENCODING,
+                "uploadsPerSession", UPLOADS_PER_SESSION);
+    }
+
+    /**
+     * Lists the parameters which differ between two runs.
+     *
+     * @return the differences, empty if the runs can be compared
+     */
+    private static List<String> mismatches(JSON.Obj base, JSON.Obj cur) {
+        List<String> diffs = new ArrayList<String>();
+        JSON.Obj p0 = base.getObj("parameters"), p1 = cur.getObj("parameters");
+        if (p0 == null) {
+            diffs.add("parameters not recorded");
+            return diffs;
+        }
+        for (String k : p1.keySet()) {
+            // numbers are compared as strings, since parsing doesn't preserve their type
+            String v0 = String.valueOf(p0.get(k)), v1 = String.valueOf(p1.get(k));
+            if (!v0.equals(v1))
+                diffs.add(k + " " + v0 + " -> " + v1);
+        }
+        return diffs;
+    }
+
+    private static List<String> compare(JSON.Obj base, JSON.Obj cur) {
+        List<String> failures = new ArrayList<String>();
+        double t0 = base.getNumber("throughput").doubleValue(), t1 = cur.getNumber("throughput").doubleValue();
+        if (t1 < t0 * (1 - THRESHOLD))
+            failures.add("throughput " + t0 + " -> " + t1);
+        for (String p : new String[] { "p50", "p99" }) {
+            double l0 = base.getObj("latency").getNumber(p).doubleValue(), l1 = cur.getObj("latency").getNumber(p).doubleValue();
+            if (l1 > l0 * (1 + THRESHOLD))
+                failures.add(p + " latency " + l0 + "µs -> " + l1 + "µs");
+        }
+        for (String k : new String[] { "heapPeak", "heapRetained", "fdPeak" }) {
+            double v0 = base.getNumber(k).doubleValue(), v1 = cur.getNumber(k).doubleValue();
+            if (v1 > v0 * (1 + THRESHOLD) + (k.startsWith("fd") ? 16 : 0))
+                failures.add(k + " " + v0 + " -> " + v1);
+        }
+        long errors = cur.getNumber("errors").longValue();
+        if (errors > cur.getNumber("throughput").longValue() * cur.getNumber("seconds").doubleValue() / 100)
+            failures.add("errors " + errors);
+        return failures;
+    }
+
+    private static void write(String path, JSON.Obj o) throws IOException {
+        File f = new File(path);
+        if (f.getParentFile() != null && !f.getParentFile().isDirectory() && !f.getParentFile().mkdirs())
+            throw new IOException("Cannot create: " + f.getParentFile());
+        FileOutputStream fos = new FileOutputStream(f);
+        JSON.encode(fos, o, true, true);
+    }
+
+    private static JSON.Obj read(File f) throws Exception {
+        FileInputStream is = new FileInputStream(f);
+        try {
+            return new JSON.Parser(new String(Util.inToArray(is), StandardCharsets.UTF_8)).getObject();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static Server start(int port) throws Exception {
+        Server server = new Server(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        ServletContextHandler ctx = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        ctx.setContextPath("/");
+        ctx.setResourceBase(new File(WEB_CONTENT).getAbsolutePath());
+        ctx.addServlet(Hello.class, "/hello");
+        ctx.addServlet(Store.class, "/api/*").setAsyncSupported(true);
+        server.setHandler(ctx);
+        server.start();
+        return server;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket s = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            return s.getLocalPort();
+        } finally {
+            s.close();
+        }
+    }
+
+    private static void awaitPort(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+        while (true) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IOException("Node on port " + port + " didn't start", e);
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /** Starts the cluster nodes as child JVMs, each with its own configuration file. */
+    private static List<Process> cluster(File root, List<JSON.Obj> files, String[] bases) throws Exception {
+        int[] ports = new int[NODES];
+        JSON.Obj nodes = new JSON.Obj();
+        for (int i = 0; i < NODES; ++i) {
+            ports[i] = freePort();
+            bases[i] = "http://127.0.0.1:" + ports[i];
+            nodes.put("n" + i, bases[i]);
+        }
+        String secret = Util.uniqueToken();
+        List<Process> children = new ArrayList<Process>();
+        for (int i = 0; i < NODES; ++i) {
+            File config = config(root, "config-n" + i + ".json", files, JSON.obj(
+                    "node", "n" + i,
+                    "secret", secret,
+                    "nodes", nodes,
+                    "shared", new File(root, "shared").getAbsolutePath()));
+            children.add(new ProcessBuilder(
+                    new File(System.getProperty("java.home"), "bin/java").getPath(),
+                    "-cp", System.getProperty("java.class.path"),
+                    "-D" + Config.PROPERTY + "=" + config.getAbsolutePath(),
+                    "-Dlogback.configurationFile=" + System.getProperty("logback.configurationFile", ""),
+                    "-Dloadtest.webContent=" + WEB_CONTENT,
+                    Node.class.getName(), Integer.toString(ports[i]))
+                    .inheritIO().start());
+        }
+        for (int port : ports)
+            awaitPort(port);
+        return children;
+    }
+
+    /** A single cluster node, running until killed. */
+    public static class Node {
+
+        public static void main(String[] args) throws Exception {
+            start(Integer.parseInt(args[0])).join();
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        Random rnd = new Random(42);
+        File root = File.createTempFile("w2s-loadtest", "");
+        if (!root.delete() || !root.mkdir())
+            throw new IOException("Cannot create temporary root: " + root);
+        List<JSON.Obj> files = setup(root, rnd);
+        System.setProperty("http.maxConnections", Integer.toString(CLIENTS));
+        String[] bases = new String[NODES];
+        Server server = null;
+        List<Process> children = new ArrayList<Process>();
+        int exit = 0;
+        try {
+            if (NODES > 1) {
+                children = cluster(root, files, bases);
+            } else {
+                System.setProperty(Config.PROPERTY, config(root, "config.json", files, null).getAbsolutePath());
+                server = start(0);
+                bases[0] = "http://127.0.0.1:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+            }
+            final int fdsBefore = openFiles();
+            final AtomicLong peakHeap = new AtomicLong();
+            final AtomicLong peakFds = new AtomicLong();
+            ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+            sampler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    if (!recording)
+                        return;
+                    long h = usedHeap();
+                    if (h > peakHeap.get())
+                        peakHeap.set(h);
+                    int fds = openFiles();
+                    if (fds > peakFds.get())
+                        peakFds.set(fds);
+                }
+            }, 0, 50, TimeUnit.MILLISECONDS);
+            List<Client> clients = new ArrayList<Client>();
+            final CountDownLatch done = new CountDownLatch(CLIENTS);
+            for (int i = 0; i < CLIENTS; ++i) {
+                final Client c = new Client(bases, rnd.nextLong());
+                clients.add(c);
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            c.run();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }, "client-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            System.out.println("Warming up " + CLIENTS + " clients for " + WARMUP + "s on " + Arrays.toString(bases));
+            Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP));
+            recording = true;
+            long start = System.nanoTime();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(DURATION));
+            recording = false;
+            long elapsed = System.nanoTime() - start;
+            running = false;
+            done.await();
+            sampler.shutdown();
+            JSON.Obj result = report(clients, elapsed, peakHeap.get(), (int) peakFds.get(), fdsBefore);
+            long uploaded = 0;
+            for (Client c : clients)
+                uploaded += c.uploaded;
+            result.put("uploaded", uploaded);
+            if (JOURNAL && NODES == 1) {
+                // all the uploads must have been recorded, with valid checksums
+                Journal.Reader r = new Journal.Reader(new File(root, "journal-config.json"));
+                long records = 0;
+                try {
+                    while (r.next() != null)
+                        ++records;
+                } finally {
+                    r.close();
+                }
+                result.put("journaled", records);
+            }
+            System.out.println(JSON.encode(result, true, true));
+            write(RESULT, result);
+            if (result.containsKey("journaled") && result.getNumber("journaled").longValue() != uploaded) {
+                System.out.println("FAILURE: journaled " + result.getNumber("journaled") + " of " + uploaded + " uploads");
+                exit = 1;
+            }
+            File baseline = new File(BASELINE);
+            if (!baseline.exists()) {
+                write(BASELINE, result);
+                System.out.println("Baseline created: " + baseline.getAbsolutePath());
+            } else {
+                JSON.Obj base = read(baseline);
+                List<String> diffs = mismatches(base, result);
+                List<String> failures = diffs.isEmpty() ? compare(base, result) : new ArrayList<String>();
+                for (String d : diffs)
+                    System.out.println("NOT COMPARABLE: " + d);
+                if (!diffs.isEmpty())
+                    System.out.println("Baseline " + baseline.getAbsolutePath() + " was recorded with different parameters, "
+                            + "use a different loadtest.baseline for them");
+                for (String f : failures)
+                    System.out.println("REGRESSION: " + f);
+                if (!diffs.isEmpty() || !failures.isEmpty())
+                    exit = 1;
+            }
+        } finally {
+            if (server != null)
+                server.stop();
+            for (Process p : children)
+                p.destroy();
+            for (Process p : children)
+                p.waitFor();
+            delete(root);
+        }
+        System.exit(exit);
+    }
+
+}
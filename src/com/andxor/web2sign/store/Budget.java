@@ -0,0 +1,347 @@
+package com.andxor.web2sign.store;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Global heap and disk budgets, shared by all the requests.
+ * <p>
+ * Requests reserve the bytes they are going to buffer in memory or write to disk before doing so, using the
+ * declared length when known and growing the reservation while reading when it isn't. When a budget is exhausted
+ * requests wait for up to <code>wait</code> milliseconds (with at most <code>queue</code> of them waiting) and are
+ * then rejected, so that a burst of big uploads slows down the service instead of crashing it; requests which could
+ * never fit are rejected at once with a {@link TooBigException}. Disk reservations
+ * also require the <code>root</code> volume to keep <code>minFree</code> bytes available. Usage is exposed via JMX
+ * as <code>com.andxor.web2sign.store:type=Budget</code>. Configured by the <code>budget</code> object in
+ * <code>config.json</code>:
+ * <pre>
+ * "budget": {
+ *     "heap": 67108864,     // bytes, default a quarter of the maximum heap
+ *     "disk": 1073741824,   // bytes of uploads in progress, 0 for unlimited
+ *     "minFree": 268435456, // bytes
+ *     "wait": 2000,         // milliseconds
+ *     "queue": 64
+ * }
+ * </pre>
+ */
+final class Budget {
+
+    private static final Logger log = LoggerFactory.getLogger(Budget.class);
+
+    private static final String MBEAN_NAME = "com.andxor.web2sign.store:type=Budget";
+    private static final long MIN_GROWTH = 64 * 1024;
+
+    private static final Config.Section<Budget> instance = new Config.Section<Budget>("budget", false) {
+        @Override
+        protected Budget create(JSON.Obj conf) {
+            return new Budget(conf);
+        }
+    };
+
+    private final long heapBudget, diskBudget; // 0 if unlimited
+    private final long minFree;
+    private final long wait; // nanoseconds
+    private final int maxQueue;
+    private final File root;
+
+    private final ReentrantLock lock = new ReentrantLock(); // rather than a monitor, which would pin virtual threads
+    private final Condition released = lock.newCondition();
+    private long heapUsed, diskUsed; // guarded by lock
+    private int queued; // guarded by lock
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** Thrown when a reservation can't be satisfied in time. */
+    public static class ExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ExceededException(String message) {
+            super(message);
+        }
+
+    }
+
+    /** Thrown when a reservation is bigger than the whole budget, so waiting wouldn't help. */
+    public static class TooBigException extends ExceededException {
+
+        private static final long serialVersionUID = 1L;
+
+        public TooBigException(String message) {
+            super(message);
+        }
+
+    }
+
+    /** Current usage, as exposed via JMX. */
+    public interface BudgetMXBean {
+
+        long getHeapBudget();
+
+        long getHeapUsed();
+
+        long getDiskBudget();
+
+        long getDiskUsed();
+
+        long getUsableSpace();
+
+        int getQueued();
+
+        long getRejected();
+
+    }
+
+    private Budget(JSON.Obj conf) {
+        heapBudget = Util.number(conf, "heap", Runtime.getRuntime().maxMemory() / 4);
+        diskBudget = Util.number(conf, "disk", 0);
+        minFree = Util.number(conf, "minFree", 0);
+        wait = TimeUnit.MILLISECONDS.toNanos(Util.number(conf, "wait", 2000));
+        maxQueue = (int) Util.number(conf, "queue", 64);
+        root = Util.getFile("");
+        register();
+    }
+
+    private void register() {
+        BudgetMXBean bean = new BudgetMXBean() {
+            @Override
+            public long getHeapBudget() {
+                return heapBudget;
+            }
+
+            @Override
+            public long getHeapUsed() {
+                lock.lock();
+                try {
+                    return heapUsed;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public long getDiskBudget() {
+                return diskBudget;
+            }
+
+            @Override
+            public long getDiskUsed() {
+                lock.lock();
+                try {
+                    return diskUsed;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public long getUsableSpace() {
+                return root.getUsableSpace();
+            }
+
+            @Override
+            public int getQueued() {
+                lock.lock();
+                try {
+                    return queued;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public long getRejected() {
+                return rejected.get();
+            }
+        };
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            try {
+                server.registerMBean(bean, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // left behind by a previous deployment
+                server.unregisterMBean(name);
+                server.registerMBean(bean, name);
+            }
+        } catch (Exception e) {
+            log.warn("Cannot register " + MBEAN_NAME, e);
+        }
+    }
+
+    public static Budget get() {
+        return instance.get();
+    }
+
+    /** Checks if the amounts fit now, with the lock held. */
+    private boolean fits(long heap, long disk) {
+        if (heap > 0 && heapBudget > 0 && heapUsed + heap > heapBudget)
+            return false;
+        if (disk > 0) {
+            if (diskBudget > 0 && diskUsed + disk > diskBudget)
+                return false;
+            // reserved bytes are not all written yet, so they're counted as used on top of the actual usage
+            if (minFree > 0 && root.getUsableSpace() - (diskUsed + disk) < minFree)
+                return false;
+        }
+        return true;
+    }
+
+    /** Takes the amounts, waiting if <code>block</code> is set. */
+    private boolean take(long heap, long disk, boolean block) throws ExceededException {
+        if ((heapBudget > 0 && heap > heapBudget) || (diskBudget > 0 && disk > diskBudget))
+            throw tooBig();
+        lock.lock();
+        try {
+            if (!fits(heap, disk)) {
+                if (!block)
+                    return false;
+                if (queued >= maxQueue)
+                    throw reject("Too many requests waiting for budget");
+                ++queued;
+                try {
+                    long left = wait;
+                    while (!fits(heap, disk)) {
+                        if (left <= 0)
+                            throw reject("Budget exceeded");
+                        left = released.awaitNanos(left);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw reject("Interrupted while waiting for budget");
+                } finally {
+                    --queued;
+                }
+            }
+            heapUsed += heap;
+            diskUsed += disk;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ExceededException reject(String message) {
+        rejected.incrementAndGet();
+        return new ExceededException(message);
+    }
+
+    private TooBigException tooBig() {
+        rejected.incrementAndGet();
+        return new TooBigException("Request bigger than the whole budget");
+    }
+
+    private void give(long heap, long disk) {
+        lock.lock();
+        try {
+            heapUsed -= heap;
+            diskUsed -= disk;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves heap and disk space, waiting for it if needed.
+     *
+     * @param heap bytes which are going to be buffered in memory
+     * @param disk bytes which are going to be written
+     * @return the reservation, which must be closed once done
+     * @throws ExceededException if the space didn't become available in time
+     * @throws TooBigException   if it's bigger than the whole budget
+     */
+    public Reservation reserve(long heap, long disk) throws ExceededException {
+        take(heap, disk, true);
+        return new Reservation(heap, disk);
+    }
+
+    /**
+     * Reserves heap and disk space, if immediately available.
+     *
+     * @return the reservation, which must be closed once done, or <code>null</code> if not available
+     */
+    public Reservation tryReserve(long heap, long disk) {
+        try {
+            return take(heap, disk, false) ? new Reservation(heap, disk) : null;
+        } catch (ExceededException e) {
+            return null;
+        }
+    }
+
+    /** Space reserved by a request. */
+    final class Reservation {
+
+        private long heap, disk;
+
+        private Reservation(long heap, long disk) {
+            this.heap = heap;
+            this.disk = disk;
+        }
+
+        /**
+         * Grows the disk reservation to at least the given total, waiting for it if needed.
+         * Grows more than asked for, so that streams of unknown length need few reservations.
+         */
+        public void growDisk(long total) throws ExceededException {
+            if (total <= disk)
+                return;
+            if (diskBudget > 0 && total > diskBudget)
+                throw tooBig();
+            long more = Math.max(total - disk, Math.max(disk, MIN_GROWTH));
+            if (diskBudget > 0)
+                more = Math.max(total - disk, Math.min(more, diskBudget - disk));
+            take(0, more, true);
+            disk += more;
+        }
+
+        /**
+         * Wraps an upload body, growing the disk reservation when more bytes are read than reserved.
+         *
+         * @param is the body, which is going to be written to disk
+         * @return the stream to read it from
+         */
+        public InputStream meter(InputStream is) {
+            return new FilterInputStream(is) {
+                private long read;
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0)
+                        growDisk(++read);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0)
+                        growDisk(read += n);
+                    return n;
+                }
+            };
+        }
+
+        /** Releases the reservation, once the data is no longer in memory and has been written. */
+        public void close() {
+            give(heap, disk);
+            heap = disk = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,618 @@
+package com.andxor.web2sign.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-aware session tokens, to scale out without sticky load balancing.
+ * <p>
+ * Enabled by the <code>cluster</code> object in <code>config.json</code>:
+ * <pre>
+ * "cluster": {
+ *     "node": "n1",
+ *     "secret": "shared by all the nodes",
+ *     "nodes": { "n1": "http://127.0.0.1:8081/store", "n2": "http://127.0.0.1:8082/store" },
+ *     "shared": "/data/w2s/sessions"
+ * }
+ * </pre>
+ * Tokens are made of the random part generated by {@link Util#uniqueToken()} followed by the id of the node which
+ * generated them and a MAC of both, so that they can't be forged.
+ * A request for a session owned by another node is proxied there, with a MAC of token and destination in the
+ * {@link #FORWARDED} header; if the owner is not part of the cluster anymore (or can't be connected to) the session is
+ * assigned to a node by a consistent-hash ring, and that node takes it over reading its state from the
+ * <code>shared</code> storage, where each node saves the sessions it owns.
+ * <p>
+ * Taking a session over means creating its next claim, <code>token.epoch.claim</code> containing the new owner id:
+ * claims are created atomically, so only one node gets each epoch, and the highest one is the current owner (with
+ * epoch 0 being the node in the token). The previous owner sees the new claim at the next request, which is then
+ * proxied to the new owner, and drops its copy; its saves are fenced by the epoch too, so they can't overwrite the
+ * state saved by the new owner. Claims and saves of a session take a lock on its <code>token.lock</code> file, so that
+ * a save checks the epoch and replaces the state before any claim, or not at all.
+ */
+final class Cluster {
+
+    private static final Logger log = LoggerFactory.getLogger(Cluster.class);
+
+    /** Header marking a request as already forwarded once, to avoid loops, containing a MAC of token and destination. */
+    public static final String FORWARDED = "X-W2S-Forwarded";
+
+    private static final int NODE_LENGTH = 4;
+    private static final int MAC_LENGTH = 10;
+    public static final int TOKEN_LENGTH = Util.token_length + NODE_LENGTH + MAC_LENGTH;
+
+    private static final int VIRTUAL_NODES = 64;
+    private static final int TIMEOUT = 10000; // milliseconds
+
+    private static final Config.Section<Cluster> instance = new Config.Section<Cluster>("cluster", true) {
+        @Override
+        protected Cluster create(JSON.Obj conf) {
+            return new Cluster(conf);
+        }
+    };
+
+    private final String nodeId;
+    private final byte[] secret;
+    private final Map<String, String> urls; // by node id
+    private final Ring ring;
+    private final File shared;
+    // the file locks are held by the whole JVM, so its threads must take turns on them
+    private final ReentrantLock[] fences = new ReentrantLock[64];
+
+    /** State of a session, as saved to shared storage. */
+    static final class Saved {
+
+        private final String prefix;
+        private final ArrayList<JSON.Obj> files;
+
+        private Saved(String prefix, ArrayList<JSON.Obj> files) {
+            this.prefix = prefix;
+            this.files = files;
+        }
+
+        /** Returns the tenant prefix the session is bound to, <code>null</code> if none. */
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public ArrayList<JSON.Obj> getFiles() {
+            return files;
+        }
+
+    }
+
+    /** Consistent-hash ring of the node ids. */
+    static final class Ring {
+
+        private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+        Ring(Iterable<String> nodes) {
+            for (String node : nodes)
+                for (int i = 0; i < VIRTUAL_NODES; ++i)
+                    ring.put(hash(node + "#" + i), node);
+        }
+
+        /**
+         * Locates the node responsible for a key.
+         *
+         * @param key     the key
+         * @param exclude a node to skip (because unreachable), may be <code>null</code>
+         * @return the node id, <code>null</code> if there are no (other) nodes
+         */
+        public String locate(String key, String exclude) {
+            if (ring.isEmpty())
+                return null;
+            long h = hash(key);
+            String node = first(ring.tailMap(h), exclude);
+            return (node != null) ? node : first(ring.headMap(h), exclude);
+        }
+
+        private static String first(SortedMap<Long, String> part, String exclude) {
+            for (String node : part.values())
+                if (!node.equals(exclude))
+                    return node;
+            return null;
+        }
+
+        private static long hash(String s) {
+            byte[] h = Util.arrayToHash(s.getBytes(StandardCharsets.UTF_8));
+            long v = 0;
+            for (int i = 0; i < 8; ++i)
+                v = (v << 8) | (h[i] & 0xFF);
+            return v;
+        }
+
+    }
+
+    private Cluster(JSON.Obj conf) {
+        String node = conf.getString("node");
+        String secret = conf.getString("secret");
+        JSON.Obj nodes = conf.getObj("nodes");
+        if (node == null || secret == null || nodes == null || !nodes.containsKey(node))
+            throw new IllegalArgumentException("'node', 'secret' and 'nodes' (including 'node' itself) are required");
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        Map<String, String> urls = new HashMap<String, String>();
+        for (Map.Entry<String, Object> e : nodes.entrySet()) {
+            String id = encodeNode(e.getKey());
+            if (urls.put(id, (String) e.getValue()) != null)
+                throw new IllegalArgumentException("Node id collision, please rename node: " + e.getKey());
+        }
+        this.urls = Collections.unmodifiableMap(urls);
+        this.nodeId = encodeNode(node);
+        this.ring = new Ring(urls.keySet());
+        this.shared = (conf.getString("shared") == null) ? null : new File(conf.getString("shared"));
+        if (shared != null && !shared.isDirectory() && !shared.mkdirs())
+            throw new IllegalArgumentException("Cannot create shared directory: " + shared);
+        for (int i = 0; i < fences.length; ++i)
+            fences[i] = new ReentrantLock();
+    }
+
+    /**
+     * Returns the cluster configuration.
+     *
+     * @return the configuration, <code>null</code> if running as a single node
+     */
+    public static Cluster get() {
+        return instance.get();
+    }
+
+    private static String encode(long v, int len) {
+        char[] buf = new char[len];
+        for (int i = len - 1; i >= 0; --i) {
+            buf[i] = Util.token_alphabet[(int) (v % Util.token_alphabet.length)];
+            v /= Util.token_alphabet.length;
+        }
+        return new String(buf);
+    }
+
+    private static String encodeNode(String name) {
+        return encode(Ring.hash(name) >>> 1, NODE_LENGTH);
+    }
+
+    private String mac(CharSequence s) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            byte[] h = mac.doFinal(s.toString().getBytes(StandardCharsets.US_ASCII));
+            char[] buf = new char[MAC_LENGTH];
+            for (int i = 0; i < MAC_LENGTH; ++i)
+                buf[i] = Util.token_alphabet[(h[i] & 0xFF) % Util.token_alphabet.length];
+            return new String(buf);
+        } catch (GeneralSecurityException e) {
+            throw new InternalError("HmacSHA256 should be available", e);
+        }
+    }
+
+    /**
+     * Adds owner information and MAC to a random token.
+     *
+     * @param random the random part of the token
+     * @return the complete token
+     */
+    public String seal(String random) {
+        String s = random + nodeId;
+        return s + mac(s);
+    }
+
+    /**
+     * Checks the MAC of a token.
+     *
+     * @param token a complete token, of length {@link #TOKEN_LENGTH}
+     * @return true if the token was generated by a node of this cluster
+     */
+    public boolean verify(String token) {
+        int len = TOKEN_LENGTH - MAC_LENGTH;
+        return MessageDigest.isEqual(
+                mac(token.substring(0, len)).getBytes(StandardCharsets.US_ASCII),
+                token.substring(len).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private File claimFile(String token, long epoch) {
+        return new File(shared, token + "." + epoch + ".claim");
+    }
+
+    private File lockFile(String token) {
+        return new File(shared, token + ".lock");
+    }
+
+    private ReentrantLock stripe(String token) {
+        return fences[(token.hashCode() & 0x7fffffff) % fences.length];
+    }
+
+    /**
+     * Locks a session against claims and saves by all the nodes.
+     *
+     * @return the lock, to be released with {@link #unfence(String, FileLock)}
+     */
+    private FileLock fence(String token) throws IOException {
+        ReentrantLock stripe = stripe(token);
+        stripe.lock();
+        boolean locked = false;
+        try {
+            FileChannel ch = FileChannel.open(lockFile(token).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                FileLock lock = ch.lock();
+                locked = true;
+                return lock;
+            } finally {
+                if (!locked)
+                    ch.close();
+            }
+        } finally {
+            if (!locked)
+                stripe.unlock();
+        }
+    }
+
+    private void unfence(String token, FileLock lock) {
+        try {
+            lock.channel().close(); // releases the lock too
+        } catch (IOException e) {
+            log.warn("Cannot unlock: " + lockFile(token), e);
+        } finally {
+            stripe(token).unlock();
+        }
+    }
+
+    /**
+     * Returns the fencing epoch of a session, which grows each time it's taken over.
+     *
+     * @param token a verified token
+     * @return the epoch of the latest claim, 0 if it's still owned by the node which generated it
+     */
+    public long epoch(String token) {
+        long epoch = 0;
+        if (shared != null)
+            while (claimFile(token, epoch + 1).exists())
+                ++epoch;
+        return epoch;
+    }
+
+    /**
+     * Returns the current owner of a session.
+     *
+     * @param token a verified token
+     * @param epoch its current epoch, see {@link #epoch(String)}
+     * @return the node id
+     */
+    private String owner(String token, long epoch) throws IOException {
+        if (epoch == 0)
+            return token.substring(Util.token_length, Util.token_length + NODE_LENGTH);
+        FileInputStream is = new FileInputStream(claimFile(token, epoch));
+        try {
+            return new String(Util.inToArray(is), StandardCharsets.US_ASCII);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Checks if this node is the current owner of a session.
+     *
+     * @param token a verified token
+     * @param epoch its current epoch, see {@link #epoch(String)}
+     */
+    public boolean owns(String token, long epoch) throws IOException {
+        return nodeId.equals(owner(token, epoch));
+    }
+
+    /**
+     * Takes a session over, making this node its owner.
+     *
+     * @param token a verified token
+     * @param epoch its current epoch, see {@link #epoch(String)}
+     * @return the new epoch, or -1 if another node took it over first
+     */
+    public long claim(String token, long epoch) throws IOException {
+        // written aside and then linked, so that the claim is created atomically with its content
+        File tmp = File.createTempFile(token + ".", ".tmp", shared);
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                fos.write(nodeId.getBytes(StandardCharsets.US_ASCII));
+            } finally {
+                fos.close();
+            }
+            FileLock lock = fence(token);
+            try {
+                Files.createLink(claimFile(token, epoch + 1).toPath(), tmp.toPath());
+            } finally {
+                unfence(token, lock);
+            }
+            return epoch + 1;
+        } catch (FileAlreadyExistsException e) {
+            return -1;
+        } finally {
+            if (!tmp.delete())
+                log.warn("Cannot delete: " + tmp);
+        }
+    }
+
+    /**
+     * Decides which node should serve a token.
+     *
+     * @param token       a verified token
+     * @param unreachable a node which couldn't be connected to, may be <code>null</code>
+     * @return the id of the node to proxy the request to, or <code>null</code> to serve it locally
+     */
+    public String target(String token, String unreachable) throws IOException {
+        String owner = owner(token, epoch(token));
+        if (!urls.containsKey(owner) || owner.equals(unreachable))
+            owner = ring.locate(token.substring(0, Util.token_length), unreachable);
+        return (owner == null || owner.equals(nodeId)) ? null : owner;
+    }
+
+    /**
+     * Sends the request to the node owning the session, if it's not this one.
+     * When the owner can't be connected to the request is sent to the next node on the ring instead (possibly this
+     * one, which then takes the session over), but once the body has been sent there is no going back: a failure
+     * gets 502 (504 on timeout), as the request could have been executed anyway.
+     *
+     * @return true if the request has been handled (proxied or rejected), false if it must be served locally
+     */
+    public boolean dispatch(String token, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!verify(token)) {
+            log.warn("Token contraffatto: " + token);
+            Store.reject(response, "Richiesta non valida", "Troppe richieste");
+            return true;
+        }
+        String hop = request.getHeader(FORWARDED);
+        if (hop != null) {
+            // the sender already decided it's ours
+            if (MessageDigest.isEqual(hopMac(token, nodeId).getBytes(StandardCharsets.US_ASCII), hop.getBytes(StandardCharsets.US_ASCII)))
+                return false;
+            log.warn("Inoltro contraffatto: " + token);
+            Store.reject(response, "Richiesta non valida", "Troppe richieste");
+            return true;
+        }
+        String target = target(token, null);
+        if (target == null)
+            return false;
+        // this node doesn't own the session (anymore), a local copy would be stale
+        Store.drop(token);
+        try {
+            if (!proxy(target, token, request, response)) {
+                // nothing was sent, so it can still go somewhere else
+                target = target(token, target);
+                if (target == null)
+                    return false; // take it over
+                if (!proxy(target, token, request, response))
+                    response.sendError(502, "Nodo non raggiungibile");
+            }
+        } catch (SocketTimeoutException e) {
+            if (response.isCommitted())
+                throw e;
+            log.warn("Node " + target + " timed out", e);
+            response.sendError(504, "Nodo non raggiungibile");
+        } catch (IOException e) {
+            if (response.isCommitted())
+                throw e;
+            log.warn("Node " + target + " failed", e);
+            response.sendError(502, "Nodo non raggiungibile");
+        }
+        return true;
+    }
+
+    /** MAC of a forwarded request, which proves it was sent by a node of the cluster to that node. */
+    private String hopMac(String token, String node) {
+        return mac("hop:" + token + node);
+    }
+
+    /**
+     * Forwards a request to another node.
+     *
+     * @return false if the node couldn't be connected to, in which case nothing was sent and the body wasn't read
+     */
+    private boolean proxy(String node, String token, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String query = request.getQueryString();
+        URL url = new URL(urls.get(node) + request.getServletPath() + request.getPathInfo() + (query == null ? "" : "?" + query));
+        HttpURLConnection c = (HttpURLConnection) url.openConnection();
+        c.setConnectTimeout(TIMEOUT);
+        c.setReadTimeout(TIMEOUT);
+        c.setRequestMethod(request.getMethod());
+        c.setRequestProperty(FORWARDED, hopMac(token, node));
+        for (String h : new String[] { "X-W2S-JSON", "X-W2S-Delta", "X-W2S-Chunk-Hash", "Content-Range", "Content-Type", "Accept-Encoding" })
+            if (request.getHeader(h) != null)
+                c.setRequestProperty(h, request.getHeader(h));
+        boolean body = "POST".equals(request.getMethod()) || "PUT".equals(request.getMethod());
+        if (body) {
+            c.setDoOutput(true);
+            long len = request.getContentLength();
+            if (len >= 0)
+                c.setFixedLengthStreamingMode(len);
+            else
+                c.setChunkedStreamingMode(0);
+        }
+        try {
+            c.connect();
+        } catch (IOException e) {
+            log.warn("Node " + node + " unreachable, relocating session", e);
+            return false;
+        }
+        int status;
+        try {
+            if (body) {
+                OutputStream os = c.getOutputStream();
+                Util.inToOut(request.getInputStream(), os);
+                os.close();
+            }
+            status = c.getResponseCode();
+        } catch (ConnectException e) {
+            if (body)
+                throw e;
+            // a kept alive connection was stale, and it couldn't be opened again
+            log.warn("Node " + node + " unreachable, relocating session", e);
+            return false;
+        }
+        response.setStatus(status);
+        for (String h : new String[] { "Content-Type", "Cache-Control", "Content-Encoding", "Vary" })
+            if (c.getHeaderField(h) != null)
+                response.setHeader(h, c.getHeaderField(h));
+        InputStream is = (status < 400) ? c.getInputStream() : c.getErrorStream();
+        if (is != null) {
+            try {
+                Util.inToOut(is, response.getOutputStream());
+            } finally {
+                is.close();
+            }
+        }
+        return true;
+    }
+
+    private File sharedFile(String token) {
+        return new File(shared, token + ".json");
+    }
+
+    /**
+     * Saves session state to shared storage, so that another node can take it over.
+     *
+     * @param token  the session token
+     * @param prefix the tenant prefix the session is bound to, <code>null</code> if none
+     * @param epoch  the epoch at which this node got the session, it's not saved if it has been taken over since
+     * @param files  the session files
+     * @return false if this node doesn't own the session anymore
+     */
+    public boolean save(String token, String prefix, long epoch, ArrayList<JSON.Obj> files) {
+        if (shared == null)
+            return true;
+        try {
+            // copied rather than written with the lock held, as that would keep the requests of the session waiting
+            ArrayList<JSON.Obj> copy;
+            synchronized (files) {
+                copy = new ArrayList<JSON.Obj>(files);
+            }
+            File tmp = File.createTempFile(token + ".", ".tmp", shared);
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                JSON.encode(fos, JSON.obj("prefix", prefix, "files", copy), true);
+            } finally {
+                fos.close();
+            }
+            File dest = sharedFile(token);
+            FileLock lock = fence(token);
+            try {
+                if (epoch(token) != epoch) {
+                    log.warn("Session taken over by another node, not saved: " + token);
+                    if (!tmp.delete())
+                        log.warn("Cannot delete: " + tmp);
+                    return false;
+                }
+                if (!tmp.renameTo(dest) && !(dest.delete() && tmp.renameTo(dest)))
+                    throw new IOException("Cannot rename " + tmp + " to " + dest);
+            } finally {
+                unfence(token, lock);
+            }
+        } catch (IOException e) {
+            log.error("Cannot save session to shared storage", e);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a session from shared storage, when it's not available anymore.
+     * Only the current owner of the session may call this.
+     */
+    public void forget(String token) {
+        if (shared == null)
+            return;
+        if (!sharedFile(token).delete() && sharedFile(token).exists())
+            log.warn("Cannot delete session from shared storage: " + token);
+        for (long epoch = epoch(token); epoch > 0; --epoch)
+            if (!claimFile(token, epoch).delete())
+                log.warn("Cannot delete: " + claimFile(token, epoch));
+        if (!lockFile(token).delete() && lockFile(token).exists())
+            log.warn("Cannot delete: " + lockFile(token));
+    }
+
+    /**
+     * Checks if a session is available in shared storage.
+     *
+     * @param token the session token
+     */
+    public boolean isSaved(String token) {
+        return shared != null && sharedFile(token).exists();
+    }
+
+    /**
+     * Lists the sessions saved to shared storage.
+     *
+     * @return the session tokens
+     */
+    public List<String> saved() {
+        ArrayList<String> tokens = new ArrayList<String>();
+        String[] names = (shared == null) ? null : shared.list();
+        if (names != null)
+            for (String name : names)
+                if (name.endsWith(".json"))
+                    tokens.add(name.substring(0, name.length() - 5));
+        return tokens;
+    }
+
+    /**
+     * Reads the state of a session saved by another node.
+     *
+     * @return the session state, <code>null</code> if not available
+     */
+    public Saved restore(String token) {
+        if (shared == null)
+            return null;
+        File f = sharedFile(token);
+        if (!f.exists())
+            return null;
+        try {
+            FileInputStream is = new FileInputStream(f);
+            String s;
+            try {
+                s = new String(Util.inToArray(is), StandardCharsets.UTF_8);
+            } finally {
+                is.close();
+            }
+            JSON.Obj saved = new JSON.Parser(s).getObject();
+            ArrayList<JSON.Obj> files = new ArrayList<JSON.Obj>();
+            for (Object o : saved.getArray("files")) {
+                JSON.Obj file = (JSON.Obj) o;
+                // saved as plain JSON, back to the compiled block shared by all the sessions
+                JSON.Obj sig = file.getObj("signature");
+                if (sig != null)
+                    file.put("signature", Config.get().compile(sig));
+                files.add(file);
+            }
+            return new Saved(saved.getString("prefix"), files);
+        } catch (Exception e) {
+            log.error("Cannot read session from shared storage", e);
+            return null;
+        }
+    }
+
+}
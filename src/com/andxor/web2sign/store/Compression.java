@@ -0,0 +1,454 @@
+package com.andxor.web2sign.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Response compression, negotiated with <code>Accept-Encoding</code>.
+ * <p>
+ * Only responses of compressible types and at least <code>minSize</code> bytes are compressed, using deflaters
+ * from a shared pool. The compressed forms of immutable content (documents, keyed by their hash, and static
+ * assets) are cached, as is the fact that they don't compress well, so that they're compressed only once; content
+ * too big to be cached is compressed while streaming, unless its beginning doesn't compress well, which is cached too.
+ * Configured by the <code>compression</code> object in <code>config.json</code>:
+ * <pre>
+ * "compression": {
+ *     "enabled": true,
+ *     "level": 6,            // deflate level
+ *     "minSize": 1024,       // smaller responses are not worth it
+ *     "minRatio": 0.9,       // content which doesn't shrink at least this much is sent as it is
+ *     "cacheSize": 33554432, // bytes of compressed forms kept in memory
+ *     "types": [ "application/json", "text/javascript" ] // add "application/octet-stream" for documents
+ * }
+ * </pre>
+ */
+final class Compression {
+
+    private static final Logger log = LoggerFactory.getLogger(Compression.class);
+
+    /** Supported encodings, in order of preference. */
+    enum Encoding {
+
+        GZIP("gzip", true), DEFLATE("deflate", false);
+
+        final String token;
+        final boolean nowrap; // gzip has its own framing around raw deflate data
+
+        Encoding(String token, boolean nowrap) {
+            this.token = token;
+            this.nowrap = nowrap;
+        }
+
+    }
+
+    /** Source of content which can be read more than once. */
+    interface Source {
+
+        InputStream open() throws IOException;
+
+    }
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final byte[] INCOMPRESSIBLE = new byte[0];
+    private static final int ENTRY_OVERHEAD = 64; // bytes, so that the INCOMPRESSIBLE markers are not free
+    private static final int MAX_POOLED = 4 * Runtime.getRuntime().availableProcessors();
+    private static final int PROBE_SIZE = 64 * 1024; // bytes of streamed content compressed to see if it's worth it
+
+    private static final Config.Section<Compression> instance = new Config.Section<Compression>("compression", false) {
+        @Override
+        protected Compression create(JSON.Obj conf) {
+            return new Compression(conf);
+        }
+    };
+
+    private final boolean enabled;
+    private final int level;
+    private final int minSize;
+    private final double minRatio;
+    private final long cacheSize;
+    private final Set<String> types = new HashSet<String>();
+
+    // deflaters are pooled rather than kept per thread, as with virtual threads each request has a new one
+    private final ConcurrentLinkedQueue<Deflater>[] pools;
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    // compressed forms, guarded by itself
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, .75F, true);
+    private long cached; // bytes, guarded by cache
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Compression(JSON.Obj conf) {
+        enabled = !Boolean.FALSE.equals(conf.getBool("enabled"));
+        level = (int) Util.number(conf, "level", 6);
+        minSize = (int) Util.number(conf, "minSize", 1024);
+        Number r = conf.getNumber("minRatio");
+        minRatio = (r == null) ? 0.9 : r.doubleValue();
+        cacheSize = Util.number(conf, "cacheSize", 32L << 20);
+        Object[] t = conf.getArray("types");
+        if (t == null)
+            types.addAll(Arrays.asList("application/json", "text/javascript"));
+        else
+            for (Object o : t)
+                types.add((String) o);
+        pools = new ConcurrentLinkedQueue[Encoding.values().length];
+        for (int i = 0; i < pools.length; ++i)
+            pools[i] = new ConcurrentLinkedQueue<Deflater>();
+    }
+
+    public static Compression get() {
+        return instance.get();
+    }
+
+    /**
+     * Chooses the encoding to use, by <code>q</code> value and then by preference.
+     *
+     * @param accept the <code>Accept-Encoding</code> header, may be <code>null</code>
+     * @return the encoding, <code>null</code> for none
+     */
+    static Encoding negotiate(String accept) {
+        if (accept == null)
+            return null;
+        Encoding best = null;
+        double bestQ = 0, wildcard = -1;
+        double[] q = new double[Encoding.values().length];
+        Arrays.fill(q, -1);
+        for (String part : accept.split(",")) {
+            String[] params = part.split(";");
+            String token = params[0].trim();
+            double value = 1;
+            for (int i = 1; i < params.length; ++i) {
+                String p = params[i].trim();
+                if (p.startsWith("q=") || p.startsWith("Q="))
+                    try {
+                        value = Double.parseDouble(p.substring(2));
+                    } catch (NumberFormatException e) {
+                        value = 0;
+                    }
+            }
+            if (token.equals("*"))
+                wildcard = value;
+            else
+                for (Encoding e : Encoding.values())
+                    if (e.token.equalsIgnoreCase(token) || (e == Encoding.GZIP && token.equalsIgnoreCase("x-gzip")))
+                        q[e.ordinal()] = Math.max(q[e.ordinal()], value);
+        }
+        for (Encoding e : Encoding.values()) {
+            double v = (q[e.ordinal()] >= 0) ? q[e.ordinal()] : wildcard;
+            if (v > bestQ) {
+                best = e;
+                bestQ = v;
+            }
+        }
+        return best;
+    }
+
+    private boolean isCompressible(String contentType) {
+        if (!enabled || contentType == null)
+            return false;
+        int semi = contentType.indexOf(';');
+        return types.contains((semi < 0 ? contentType : contentType.substring(0, semi)).trim().toLowerCase());
+    }
+
+    /** Chooses the encoding of a response whose content type is already set, adding <code>Vary</code> if needed. */
+    private Encoding choose(HttpServletRequest request, HttpServletResponse response, long length) {
+        if (!isCompressible(response.getContentType()))
+            return null;
+        response.addHeader("Vary", "Accept-Encoding");
+        return (length >= 0 && length < minSize) ? null : negotiate(request.getHeader("Accept-Encoding"));
+    }
+
+    private Deflater acquire(Encoding e) {
+        Deflater d = pools[e.ordinal()].poll();
+        if (d == null)
+            return new Deflater(level, e.nowrap);
+        pooled.decrementAndGet();
+        return d;
+    }
+
+    private void release(Encoding e, Deflater d) {
+        d.reset();
+        if (pooled.incrementAndGet() <= MAX_POOLED)
+            pools[e.ordinal()].offer(d);
+        else {
+            pooled.decrementAndGet();
+            d.end();
+        }
+    }
+
+    private static void writeIntLE(byte[] b, int pos, long v) {
+        b[pos] = (byte) v;
+        b[pos + 1] = (byte) (v >> 8);
+        b[pos + 2] = (byte) (v >> 16);
+        b[pos + 3] = (byte) (v >> 24);
+    }
+
+    /**
+     * Compresses data in memory.
+     *
+     * @param data the data
+     * @param e    the encoding
+     * @return the encoded data
+     */
+    byte[] compress(byte[] data, Encoding e) {
+        Deflater d = acquire(e);
+        try {
+            d.setInput(data);
+            d.finish();
+            byte[] out = new byte[data.length / 2 + 64];
+            int pos = 0;
+            if (e == Encoding.GZIP) {
+                System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+                pos = GZIP_HEADER.length;
+            }
+            while (!d.finished()) {
+                if (pos == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+                pos += d.deflate(out, pos, out.length - pos);
+            }
+            if (e == Encoding.GZIP) {
+                out = Arrays.copyOf(out, pos + 8);
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                writeIntLE(out, pos, crc.getValue());
+                writeIntLE(out, pos + 4, data.length);
+                return out;
+            }
+            return Arrays.copyOf(out, pos);
+        } finally {
+            release(e, d);
+        }
+    }
+
+    /** Streaming compression, for content too big to be compressed in memory. */
+    private final class Encoder extends OutputStream {
+
+        private final OutputStream os;
+        private final Encoding e;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buf = new byte[8192];
+        private Deflater d;
+        private long size;
+
+        Encoder(OutputStream os, Encoding e) throws IOException {
+            this.os = os;
+            this.e = e;
+            this.d = acquire(e);
+            if (e == Encoding.GZIP)
+                os.write(GZIP_HEADER);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            d.setInput(b, off, len);
+            while (!d.needsInput())
+                drain();
+            crc.update(b, off, len);
+            size += len;
+        }
+
+        private void drain() throws IOException {
+            int n = d.deflate(buf, 0, buf.length);
+            if (n > 0)
+                os.write(buf, 0, n);
+        }
+
+        /** Writes the end of the compressed data, without closing the underlying stream. */
+        void finish() throws IOException {
+            if (d == null)
+                return;
+            try {
+                d.finish();
+                while (!d.finished())
+                    drain();
+                if (e == Encoding.GZIP) {
+                    byte[] trailer = new byte[8];
+                    writeIntLE(trailer, 0, crc.getValue());
+                    writeIntLE(trailer, 4, size);
+                    os.write(trailer);
+                }
+            } finally {
+                release(e, d);
+                d = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            os.close();
+        }
+
+    }
+
+    private static void setEncoding(HttpServletResponse response, Encoding e, int length) {
+        response.setHeader("Content-Encoding", e.token);
+        if (length >= 0)
+            response.setContentLength(length);
+    }
+
+    /**
+     * Sends a response body built in memory, whose content type must be already set.
+     *
+     * @param key cache key if the body is immutable, <code>null</code> to not cache it
+     */
+    public void send(HttpServletRequest request, HttpServletResponse response, byte[] body, String key) throws IOException {
+        Encoding e = choose(request, response, body.length);
+        byte[] packed = (e == null) ? null : (key == null) ? shrink(body, e) : cached(key, e, body);
+        if (packed == null || packed == INCOMPRESSIBLE) {
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
+        } else {
+            setEncoding(response, e, packed.length);
+            response.getOutputStream().write(packed);
+        }
+    }
+
+    /**
+     * Sends immutable content, whose content type must be already set.
+     *
+     * @param key    cache key, which must change whenever the content does
+     * @param length content length, -1 if unknown
+     * @param source the content
+     */
+    public void send(HttpServletRequest request, HttpServletResponse response, String key, long length, Source source) throws IOException {
+        Encoding e = choose(request, response, length);
+        byte[] packed = (e == null) ? null : cached(key, e, null);
+        if (e != null && packed == null && length >= 0 && length <= cacheSize / 8) {
+            // the content and its compressed form are in memory at the same time
+            Budget.Reservation budget = Budget.get().tryReserve(2 * length, 0);
+            if (budget != null) {
+                try {
+                    InputStream is = source.open();
+                    byte[] body;
+                    try {
+                        body = Util.inToArray(is);
+                    } finally {
+                        is.close();
+                    }
+                    packed = cached(key, e, body);
+                    if (packed == INCOMPRESSIBLE) {
+                        response.setContentLength(body.length);
+                        response.getOutputStream().write(body);
+                        return;
+                    }
+                } finally {
+                    budget.close();
+                }
+            }
+        }
+        if (packed == INCOMPRESSIBLE) {
+            e = null;
+        } else if (packed != null) {
+            setEncoding(response, e, packed.length);
+            response.getOutputStream().write(packed);
+            return;
+        }
+        // streamed, and compressed on the way if needed: it's too big to be cached, or there's no heap to spare now
+        InputStream is = source.open();
+        try {
+            byte[] head = new byte[0];
+            if (e != null) {
+                // unless its beginning shows it's not worth it, which is remembered as it would be for small content
+                head = probe(is);
+                if (shrink(head, e) == INCOMPRESSIBLE) {
+                    remember(key + "/" + e.token, INCOMPRESSIBLE);
+                    e = null;
+                }
+            }
+            if (e == null) {
+                response.getOutputStream().write(head);
+                Util.inToOut(is, response.getOutputStream());
+            } else {
+                setEncoding(response, e, -1);
+                Encoder os = new Encoder(response.getOutputStream(), e);
+                try {
+                    os.write(head, 0, head.length);
+                    Util.inToOut(is, os);
+                } finally {
+                    os.finish();
+                }
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    /** Reads the beginning of content, up to {@link #PROBE_SIZE} bytes. */
+    private static byte[] probe(InputStream is) throws IOException {
+        byte[] buf = new byte[PROBE_SIZE];
+        int pos = 0, len;
+        while (pos < buf.length && (len = is.read(buf, pos, buf.length - pos)) >= 0)
+            pos += len;
+        return (pos == buf.length) ? buf : Arrays.copyOf(buf, pos);
+    }
+
+    /** Adds a compressed form to the cache, evicting the least recently used ones if needed. */
+    private void remember(String k, byte[] packed) {
+        synchronized (cache) {
+            byte[] old = cache.put(k, packed);
+            cached += packed.length + ENTRY_OVERHEAD;
+            if (old != null)
+                cached -= old.length + ENTRY_OVERHEAD;
+            Iterator<Map.Entry<String, byte[]>> i = cache.entrySet().iterator();
+            while (cached > cacheSize && i.hasNext()) {
+                cached -= i.next().getValue().length + ENTRY_OVERHEAD;
+                i.remove();
+            }
+        }
+    }
+
+    /** Compresses, returning {@link #INCOMPRESSIBLE} if not worth it. */
+    private byte[] shrink(byte[] body, Encoding e) {
+        byte[] packed = compress(body, e);
+        return (packed.length > body.length * minRatio) ? INCOMPRESSIBLE : packed;
+    }
+
+    /**
+     * Gets a compressed form from the cache, computing it if missing.
+     *
+     * @param body the content, <code>null</code> to only look it up
+     * @return the compressed form, {@link #INCOMPRESSIBLE}, or <code>null</code> if not cached and no body is given
+     */
+    private byte[] cached(String key, Encoding e, byte[] body) {
+        String k = key + "/" + e.token;
+        synchronized (cache) {
+            byte[] packed = cache.get(k);
+            if (packed != null || body == null)
+                return packed;
+        }
+        // compressed outside of the lock: in the worst case two threads compress the same content
+        byte[] packed = shrink(body, e);
+        if (packed.length <= cacheSize / 8) {
+            remember(k, packed);
+            if (log.isDebugEnabled())
+                log.debug("Compressed " + key + " with " + e.token + ": " + body.length + " -> "
+                        + (packed == INCOMPRESSIBLE ? "incompressible" : packed.length));
+        }
+        return packed;
+    }
+
+}
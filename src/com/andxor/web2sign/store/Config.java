@@ -0,0 +1,163 @@
+package com.andxor.web2sign.store;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The parsed configuration, which is the <code>config.json</code> in the classpath unless a different
+ * file is specified using the <code>web2sign.config</code> system property.
+ * <p>
+ * It is read once, as the settings are used by components which live as long as the application, and is
+ * shared by all the requests (so it must not be modified): changes require a restart.
+ * The <code>signature</code> blocks of its files are compiled into {@link Signatures}.
+ */
+final class Config {
+
+    public static final String PROPERTY = "web2sign.config";
+
+    private static volatile Config instance;
+
+    private final JSON.Obj json;
+    private final List<JSON.Obj> files;
+    private final Map<String, Signatures> signatures; // of the files, by their JSON
+
+    private Config() throws Exception {
+        String path = System.getProperty(PROPERTY);
+        InputStream is = (path != null) ? new FileInputStream(path) : Config.class.getResourceAsStream("/config.json");
+        byte[] raw;
+        try {
+            raw = Util.inToArray(Objects.requireNonNull(is));
+        } finally {
+            if (is != null)
+                is.close();
+        }
+        json = new JSON.Parser(new String(raw, StandardCharsets.UTF_8), true).getObject();
+        ArrayList<JSON.Obj> files = new ArrayList<JSON.Obj>();
+        Map<String, Signatures> signatures = new HashMap<String, Signatures>();
+        Object[] conf = json.getArray("files");
+        if (conf != null)
+            for (Object o : conf) {
+                JSON.Obj file = JSON.Obj.wrap((JSON.Obj) o);
+                JSON.Obj sig = file.getObj("signature");
+                if (sig != null) {
+                    Signatures compiled = new Signatures(sig);
+                    file.put("signature", compiled);
+                    signatures.put(compiled.toJSON(), compiled);
+                }
+                files.add(file);
+            }
+        json.put("files", files.toArray());
+        this.files = Collections.unmodifiableList(files);
+        this.signatures = signatures;
+    }
+
+    /**
+     * Returns the configuration, reading it on first use.
+     *
+     * @return the configuration
+     */
+    public static Config get() {
+        Config c = instance;
+        if (c == null) {
+            synchronized (Config.class) {
+                c = instance;
+                if (c == null) {
+                    try {
+                        instance = c = new Config();
+                    } catch (Exception e) {
+                        throw new RuntimeException("Configuration error", e);
+                    }
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * A section of the configuration, with the component it configures created on first use.
+     * Optional components aren't created if their section is missing, the others get an empty one.
+     *
+     * @param <T> the component
+     */
+    abstract static class Section<T> {
+
+        private final String key;
+        private final boolean optional;
+        private volatile boolean loaded;
+        private T instance; // published by loaded
+
+        Section(String key, boolean optional) {
+            this.key = key;
+            this.optional = optional;
+        }
+
+        /** Creates the component, the first time it's needed. */
+        protected abstract T create(JSON.Obj conf) throws Exception;
+
+        /**
+         * Returns the component, creating it on first use.
+         *
+         * @return the component, <code>null</code> if optional and not configured
+         */
+        public T get() {
+            if (!loaded) {
+                synchronized (this) {
+                    if (!loaded) {
+                        try {
+                            JSON.Obj conf = Util.getConfig().getObj(key);
+                            if (conf == null && !optional)
+                                conf = new JSON.Obj();
+                            instance = (conf == null) ? null : create(conf);
+                        } catch (Exception e) {
+                            throw new RuntimeException("Configuration error in '" + key + "'", e);
+                        }
+                        loaded = true;
+                    }
+                }
+            }
+            return instance;
+        }
+
+    }
+
+    /** Returns the whole configuration, with <code>files</code> being the compiled ones. */
+    public JSON.Obj getJSON() {
+        return json;
+    }
+
+    /** Returns the configured files, whose <code>signature</code> is compiled into {@link Signatures}. */
+    public List<JSON.Obj> getFiles() {
+        return files;
+    }
+
+    /**
+     * Compiles a <code>signature</code> block read back from elsewhere, such as a session saved by the
+     * {@link Cluster}, reusing the one of the configured files when it's the same.
+     *
+     * @param conf the plain block
+     * @return the compiled block
+     */
+    public Signatures compile(JSON.Obj conf) {
+        Signatures s = signatures.get(JSON.encode(conf, false));
+        return (s != null) ? s : new Signatures(conf);
+    }
+
+    /**
+     * Returns the compiled signature settings of a file.
+     *
+     * @param fileInfo a file of the configuration, or a version derived from it
+     * @return the settings, <code>null</code> if not available
+     */
+    public static Signatures getSignatures(JSON.Obj fileInfo) {
+        Object o = fileInfo.get("signature");
+        return (o instanceof Signatures) ? (Signatures) o : null;
+    }
+
+}
@@ -1,57 +1,93 @@
 package com.andxor.web2sign.store;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
  * Example storage provider for <a href="https://www.andxor.it/w2s/native/">Web2Sign</a>.
+ * <p>
+ * Starts a new session and shows Web2Sign in a full-page iframe, or redirects to it if <code>redirect</code> is
+ * <code>true</code> in <code>config.json</code>.
  */
 public class Hello extends HttpServlet {
 
+    // the page is prerendered, only the iframe URL goes in between
+    private static final byte[] PAGE_HEAD = ("<!DOCTYPE html>\n"
+            + "<html>"
+            + "<head>\n"
+            + "  <title>Web2Sign Demo</title>\n"
+            + "  <meta http-equiv='X-UA-Compatible' content='IE=edge,chrome=1'>\n"
+            + "  <meta name='viewport' content='width=device-width,initial-scale=1,maximum-scale=1,minimum-scale=1,user-scalable=no'>\n"
+            + "  <style>\n"
+            + "    iframe {\n"
+            + "      position: absolute;\n"
+            + "      top: 0;\n"
+            + "      left: 0;\n"
+            + "      width: 100%;\n"
+            + "      height: 100%;\n"
+            + "      border: 0;\n"
+            + "    }\n"
+            + "  </style>\n"
+            + "</head>\n"
+            + "<body>\n"
+            + "<iframe src='").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PAGE_TAIL = ("'></iframe>\n"
+            + "</body>\n"
+            + "</html>\n").getBytes(StandardCharsets.UTF_8);
+
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         // defined server-side
         String url;
+        boolean redirect;
         try {
-            url = (String) Util.getConfig().get("url");
+            JSON.Obj config = Util.getConfig();
+            url = config.getString("url");
+            redirect = Boolean.TRUE.equals(config.getBool("redirect"));
         } catch (Exception e) {
             throw new RuntimeException("Configuration error in 'url'", e);
         }
-        // generate a local session
-        String token = Store.generate();
+        // generate a local session, bound to the prefix the client is going to use
+        String token = Store.generate(prefix(url));
+        if (token == null) {
+            response.sendError(429, "Troppe richieste");
+            return;
+        }
         // send the result to the user
-        response.setContentType("text/html");
-        response.setHeader("Cache-Control", "max-age=0");
         String goTo = url + "-" + token;
         String file = request.getParameter("file");
         if (file != null)
             goTo += "#" + file;
-        response.getWriter().write("<!DOCTYPE html>\n"
-                + "<html>"
-                + "<head>\n"
-                + "  <title>Web2Sign Demo</title>\n"
-                + "  <meta http-equiv='X-UA-Compatible' content='IE=edge,chrome=1'>\n"
-                + "  <meta name='viewport' content='width=device-width,initial-scale=1,maximum-scale=1,minimum-scale=1,user-scalable=no'>\n"
-                + "  <style>\n"
-                + "    iframe {\n"
-                + "      position: absolute;\n"
-                + "      top: 0;\n"
-                + "      left: 0;\n"
-                + "      width: 100%;\n"
-                + "      height: 100%;\n"
-                + "      border: 0;\n"
-                + "    }\n"
-                + "  </style>\n"
-                + "</head>\n"
-                + "<body>\n"
-                + "<iframe src='" + Util.specialChars(goTo) + "'></iframe>\n"
-                + "</body>\n"
-                + "</html>\n");
-//      response.sendRedirect(response.encodeRedirectURL(goTo));
+        response.setHeader("Cache-Control", "max-age=0");
+        if (redirect) {
+            response.sendRedirect(response.encodeRedirectURL(goTo));
+            return;
+        }
+        byte[] src = Util.specialChars(goTo).getBytes(StandardCharsets.UTF_8);
+        response.setContentType("text/html;charset=UTF-8");
+        response.setContentLength(PAGE_HEAD.length + src.length + PAGE_TAIL.length);
+        ServletOutputStream os = response.getOutputStream();
+        os.write(PAGE_HEAD);
+        os.write(src);
+        os.write(PAGE_TAIL);
+    }
+
+    /**
+     * Returns the tenant prefix of the tokens of a URL, which are appended to it after a <code>-</code>.
+     *
+     * @return the trailing alphanumeric characters of the URL, <code>null</code> if none
+     */
+    private static String prefix(String url) {
+        int start = url.length();
+        while (start > 0 && Character.isLetterOrDigit(url.charAt(start - 1)) && url.charAt(start - 1) < 0x80)
+            --start;
+        return (start == url.length()) ? null : url.substring(start);
     }
 
 }
@@ -91,6 +91,8 @@ public final class JSON {
         String indent2 = (indent == null) ? null : indent + "  ";
         if (o == null) {
             w.append("null");
+        } else if (o instanceof Raw) {
+            w.append(((Raw) o).toJSON());
         } else if (o instanceof CharSequence) {
             w.append('"');
             CharSequence seq = (CharSequence) o;
@@ -172,6 +174,14 @@ public final class JSON {
             throw new IllegalArgumentException("Cannot encode: " + o.getClass().getName());
     }
 
+    /**
+     * A value which is already encoded, written verbatim by the encoder.
+     * Its JSON must be ASCII-only, to be valid for any value of the <code>unicode</code> parameter.
+     */
+    public interface Raw {
+        String toJSON();
+    }
+
     public static Object cloneDeep(Object o) {
         if (o == null) {
             return null;
@@ -183,6 +193,8 @@ public final class JSON {
             return o; // immutable
         } else if (o instanceof Number) {
             return o; // immutable
+        } else if (o instanceof Raw) {
+            return o; // immutable
         } else if (o instanceof Map) {
             Obj u = new Obj();
             for (Object o1 : ((Map) o).entrySet()) {
@@ -0,0 +1,348 @@
+package com.andxor.web2sign.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only audit journal of signing operations.
+ * <p>
+ * Each record is a JSON object, preceded by its length and CRC32. Records are appended with group commit: a single
+ * writer thread collects the records of concurrent uploads for up to <code>window</code> milliseconds, writes them
+ * together and makes them durable with a single <code>force()</code>, after which all the waiting uploads are
+ * released. Segments are rotated when they exceed <code>segment</code> bytes, and each run starts a new one.
+ * Enabled by the <code>journal</code> object in <code>config.json</code>:
+ * <pre>
+ * "journal": { "dir": "/data/w2s/journal", "window": 2, "segment": 16777216 }
+ * </pre>
+ * {@link #main(String[])} replays a journal, verifying all the checksums.
+ */
+final class Journal {
+
+    private static final Logger log = LoggerFactory.getLogger(Journal.class);
+
+    private static final byte[] MAGIC = "W2SJ\u0000\u0000\u0000\u0001".getBytes(StandardCharsets.US_ASCII);
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER = 8; // length and CRC32
+    private static final int MAX_RECORD = 1 << 20;
+    private static final int MAX_BATCH = 1024;
+
+    private static final Config.Section<Journal> instance = new Config.Section<Journal>("journal", true) {
+        @Override
+        protected Journal create(JSON.Obj conf) throws IOException {
+            return new Journal(conf);
+        }
+    };
+
+    private final File dir;
+    private final long window; // nanoseconds
+    private final long segmentSize;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+    // guarded by the writer thread, once started
+    private long sequence;
+    private FileChannel channel;
+    private long committed; // position after the last durable record
+
+    private static final class Pending {
+
+        final ByteBuffer record;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile IOException error;
+
+        Pending(ByteBuffer record) {
+            this.record = record;
+        }
+
+    }
+
+    private Journal(JSON.Obj conf) throws IOException {
+        String d = conf.getString("dir");
+        if (d == null)
+            throw new IllegalArgumentException("'dir' is required");
+        dir = new File(d);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create journal directory: " + dir);
+        Number w = conf.getNumber("window");
+        window = TimeUnit.MICROSECONDS.toNanos((long) ((w == null ? 2 : w.doubleValue()) * 1000));
+        segmentSize = Util.number(conf, "segment", 16L << 20);
+        List<File> segments = segments(dir);
+        sequence = segments.isEmpty() ? 0 : sequenceOf(segments.get(segments.size() - 1));
+        rotate();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "w2s-journal");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Returns the journal.
+     *
+     * @return the journal, <code>null</code> if not enabled
+     */
+    public static Journal get() {
+        return instance.get();
+    }
+
+    private static long sequenceOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16);
+    }
+
+    private static List<File> segments(File dir) {
+        File[] files = dir.listFiles();
+        List<File> segments = new ArrayList<File>();
+        if (files != null)
+            for (File f : files)
+                if (f.getName().startsWith(PREFIX) && f.getName().endsWith(SUFFIX))
+                    segments.add(f);
+        // fixed-width hexadecimal sequence numbers sort lexicographically
+        File[] sorted = segments.toArray(new File[segments.size()]);
+        Arrays.sort(sorted);
+        return Arrays.asList(sorted);
+    }
+
+    private void rotate() throws IOException {
+        if (channel != null)
+            channel.close();
+        File f = new File(dir, String.format("%s%016X%s", PREFIX, ++sequence, SUFFIX));
+        channel = new RandomAccessFile(f, "rw").getChannel();
+        channel.write(ByteBuffer.wrap(MAGIC));
+        channel.force(true);
+        committed = channel.position();
+        log.info("Journal segment: " + f);
+    }
+
+    private static ByteBuffer encode(JSON.Obj event) {
+        byte[] payload = JSON.encode(event, true).getBytes(StandardCharsets.UTF_8);
+        if (payload.length > MAX_RECORD)
+            throw new IllegalArgumentException("Journal record too big: " + payload.length);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer b = ByteBuffer.allocate(HEADER + payload.length);
+        b.putInt(payload.length);
+        b.putInt((int) crc.getValue());
+        b.put(payload);
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Appends an event, returning only once it is durable.
+     *
+     * @param event the event to record
+     * @throws IOException if the event could not be written
+     */
+    public void append(JSON.Obj event) throws IOException {
+        Pending p = new Pending(encode(event));
+        queue.add(p);
+        try {
+            p.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for journal commit");
+        }
+        if (p.error != null)
+            throw new IOException("Journal write failed", p.error);
+    }
+
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<Pending>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                // wait a little for concurrent uploads to join this batch
+                long deadline = System.nanoTime() + window;
+                while (batch.size() < MAX_BATCH) {
+                    long wait = deadline - System.nanoTime();
+                    Pending p = (wait > 0) ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (p == null)
+                        break;
+                    batch.add(p);
+                }
+                commit(batch);
+            } catch (InterruptedException e) {
+                log.warn("Journal writer interrupted");
+                for (Pending p : batch)
+                    p.error = new InterruptedIOException("Journal writer interrupted");
+                return;
+            } finally {
+                for (Pending p : batch)
+                    p.done.countDown();
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        try {
+            ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+            for (int i = 0; i < buffers.length; ++i)
+                buffers[i] = batch.get(i).record;
+            while (buffers[buffers.length - 1].hasRemaining())
+                channel.write(buffers);
+            channel.force(false);
+            committed = channel.position();
+        } catch (IOException e) {
+            log.error("Journal write failed", e);
+            for (Pending p : batch)
+                p.error = e;
+            discardTail();
+            return;
+        }
+        // the batch is durable anyway
+        if (committed >= segmentSize) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                log.error("Journal rotation failed", e);
+            }
+        }
+    }
+
+    /**
+     * Drops what was written after the last commit: those records have been reported as failed, so they must not
+     * show up when reading the journal, and the next batch must not follow a torn record.
+     * If the segment can't be truncated a new one is started, where the next batch can be written anyway.
+     */
+    private void discardTail() {
+        try {
+            channel.truncate(committed);
+            channel.position(committed);
+            channel.force(false);
+        } catch (IOException e) {
+            log.error("Cannot truncate journal segment, rotating", e);
+            try {
+                rotate();
+            } catch (IOException e2) {
+                // the next commit tries again
+                log.error("Journal rotation failed", e2);
+            }
+        }
+    }
+
+    /** Sequential reader of a journal, verifying the checksums. */
+    static final class Reader {
+
+        private final List<File> segments;
+        private int segment = -1;
+        private FileChannel channel;
+        private File current;
+
+        Reader(File dir) {
+            segments = segments(dir);
+        }
+
+        /**
+         * Returns the next record.
+         *
+         * A torn record at the end of a segment (a crash during a write) is skipped, as it was never committed.
+         *
+         * @return the event, <code>null</code> at the end of the journal
+         * @throws IOException if a record is corrupted
+         */
+        public JSON.Obj next() throws IOException {
+            while (true) {
+                if (channel == null) {
+                    if (++segment >= segments.size())
+                        return null;
+                    current = segments.get(segment);
+                    channel = new FileInputStream(current).getChannel();
+                    ByteBuffer magic = read(MAGIC.length);
+                    if (magic == null || !Arrays.equals(magic.array(), MAGIC))
+                        throw new IOException("Not a journal segment: " + current);
+                }
+                ByteBuffer header = read(HEADER);
+                ByteBuffer payload = null;
+                if (header != null) {
+                    int len = header.getInt();
+                    if (len < 0 || len > MAX_RECORD)
+                        throw new IOException("Invalid record length in " + current + " at " + (channel.position() - HEADER));
+                    payload = read(len);
+                }
+                if (payload == null) {
+                    if (channel.position() < channel.size() || header != null)
+                        log.warn("Skipping torn record at the end of " + current);
+                    channel.close();
+                    channel = null;
+                    continue;
+                }
+                int len = payload.limit();
+                int crc = header.getInt();
+                CRC32 c = new CRC32();
+                c.update(payload.array());
+                if ((int) c.getValue() != crc)
+                    throw new IOException("Checksum mismatch in " + current + " at " + (channel.position() - len - HEADER));
+                try {
+                    return new JSON.Parser(new String(payload.array(), StandardCharsets.UTF_8)).getObject();
+                } catch (JSON.Parser.Exception e) {
+                    throw new IOException("Invalid record in " + current, e);
+                }
+            }
+        }
+
+        /** Reads exactly <code>len</code> bytes, returns <code>null</code> on a clean or partial end of file. */
+        private ByteBuffer read(int len) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(len);
+            while (b.hasRemaining())
+                if (channel.read(b) < 0)
+                    return null;
+            b.flip();
+            return b;
+        }
+
+        public void close() throws IOException {
+            if (channel != null)
+                channel.close();
+        }
+
+    }
+
+    /**
+     * Replays a journal, printing each record and verifying all the checksums.
+     *
+     * @param args the journal directory
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: Journal <directory>");
+            System.exit(2);
+        }
+        Reader r = new Reader(new File(args[0]));
+        long count = 0;
+        try {
+            JSON.Obj o;
+            while ((o = r.next()) != null) {
+                System.out.println(JSON.encode(o, true));
+                ++count;
+            }
+            System.err.println(count + " records verified");
+        } catch (IOException e) {
+            System.err.println("After " + count + " records: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            r.close();
+        }
+    }
+
+}
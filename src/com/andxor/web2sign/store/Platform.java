@@ -0,0 +1,72 @@
+package com.andxor.web2sign.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Operations which newer Java versions implement better, picked at runtime.
+ * <p>
+ * This is the Java 8 implementation; the multi-release jar also contains one for Java 21 in
+ * <code>META-INF/versions/21</code> (from <code>src21</code>), with the same methods.
+ */
+final class Platform {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private Platform() {
+    }
+
+    /** Returns the Java version this implementation was compiled for. */
+    public static int version() {
+        return 8;
+    }
+
+    /**
+     * Creates an executor which runs each task in a new virtual thread.
+     *
+     * @param name prefix of the thread names
+     * @return the executor, <code>null</code> if virtual threads are not available
+     */
+    public static ExecutorService newVirtualThreadExecutor(String name) {
+        return null;
+    }
+
+    /**
+     * Copies a stream into another one.
+     *
+     * @param is the source
+     * @param os the destination
+     * @return the number of bytes copied
+     */
+    public static long copy(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int len;
+        while ((len = is.read(buffer)) != -1) {
+            os.write(buffer, 0, len);
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * Encodes bytes in uppercase hexadecimal.
+     *
+     * @param buffer the bytes, may be <code>null</code>
+     * @return the hexadecimal string, empty if there are no bytes
+     */
+    public static String toHex(byte[] buffer) {
+        if (buffer == null)
+            return "";
+        char[] str = new char[buffer.length * 2];
+        for (int i = 0; i < buffer.length; ++i) {
+            str[i * 2] = DIGITS[(buffer[i] >> 4) & 0x0F];
+            str[i * 2 + 1] = DIGITS[buffer[i] & 0x0F];
+        }
+        return new String(str);
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.andxor.web2sign.store;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background deletion of the version files of sessions which are no longer available.
+ * <p>
+ * Files are queued when their session is evicted or expires, and deleted after a grace period (so that requests
+ * already in flight can complete) in small rate-limited batches by a low-priority thread, to avoid competing with
+ * request I/O. Configured by the <code>reclaim</code> object in <code>config.json</code>:
+ * <pre>
+ * "reclaim": {
+ *     "grace": 300,           // seconds before a released file is deleted
+ *     "rate": 50,             // maximum deletions per second
+ *     "batch": 10,            // deletions per run
+ *     "sessionTimeout": 7200, // seconds of inactivity after which a session expires, 0 to never expire
+ *     "sweep": true           // look for orphans under root at startup
+ * }
+ * </pre>
+ */
+final class Reclaimer {
+
+    private static final Logger log = LoggerFactory.getLogger(Reclaimer.class);
+
+    private static final Config.Section<Reclaimer> instance = new Config.Section<Reclaimer>("reclaim", false) {
+        @Override
+        protected Reclaimer create(JSON.Obj conf) {
+            return new Reclaimer(conf);
+        }
+    };
+
+    private final long grace; // milliseconds
+    private final int batch;
+    private final long timeout; // milliseconds, 0 if never
+    private final boolean sweep;
+    private final DelayQueue<Pending> queue = new DelayQueue<Pending>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(Util.daemonThreadFactory("w2s-reclaimer", Thread.MIN_PRIORITY));
+
+    private static final class Pending implements Delayed {
+
+        final File file;
+        final long deadline; // System.nanoTime()
+
+        Pending(File file, long delay) {
+            this.file = file;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long d = deadline - ((Pending) o).deadline;
+            return (d < 0) ? -1 : (d > 0) ? 1 : 0;
+        }
+
+    }
+
+    private Reclaimer(JSON.Obj conf) {
+        grace = TimeUnit.SECONDS.toMillis(Util.number(conf, "grace", 300));
+        double rate = Math.max(1, Util.number(conf, "rate", 50));
+        batch = (int) Math.max(1, Util.number(conf, "batch", 10));
+        timeout = TimeUnit.SECONDS.toMillis(Util.number(conf, "sessionTimeout", 0));
+        sweep = Boolean.TRUE.equals(conf.getBool("sweep"));
+        long period = (long) (TimeUnit.SECONDS.toMillis(batch) / rate);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deleteBatch();
+                    Store.expire(timeout);
+                } catch (Throwable t) {
+                    log.error("Reclamation failed", t);
+                }
+            }
+        }, period, Math.max(1, period), TimeUnit.MILLISECONDS);
+    }
+
+    public static Reclaimer get() {
+        return instance.get();
+    }
+
+    /**
+     * Queues files for deletion, after the grace period.
+     *
+     * @param names physical names of the files, relative to <code>root</code>
+     */
+    public void release(Collection<String> names) {
+        for (String name : names)
+            queue.add(new Pending(Util.getFile(name), grace));
+    }
+
+    private void deleteBatch() {
+        for (int i = 0; i < batch; ++i) {
+            Pending p = queue.poll();
+            if (p == null)
+                return;
+            if (p.file.delete())
+                log.debug("Reclaimed: " + p.file.getName());
+            else if (p.file.exists())
+                log.warn("Cannot delete: " + p.file);
+        }
+    }
+
+    /** Returns the number of files waiting to be deleted. */
+    public int pending() {
+        return queue.size();
+    }
+
+    /** Recursive scan of a directory, forking a task for each subdirectory. */
+    private static final class Scan extends RecursiveAction {
+
+        private final File dir;
+        private final String prefix; // path relative to root
+        private final Set<String> live;
+        private final long olderThan;
+        private final Collection<String> found;
+
+        Scan(File dir, String prefix, Set<String> live, long olderThan, Collection<String> found) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.live = live;
+            this.olderThan = olderThan;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            File[] children = dir.listFiles();
+            if (children == null)
+                return;
+            List<Scan> subdirs = new ArrayList<Scan>();
+            for (File f : children) {
+                String name = prefix + f.getName();
+                if (f.isDirectory())
+                    subdirs.add(new Scan(f, name + "/", live, olderThan, found));
+                else if (Util.isVersionFile(name) && !live.contains(name) && f.lastModified() < olderThan)
+                    found.add(name);
+            }
+            invokeAll(subdirs);
+        }
+
+    }
+
+    /**
+     * Looks for orphaned version files under <code>root</code>, scanning directories in parallel, and queues them
+     * for deletion. Files modified during the grace period are never considered orphans.
+     *
+     * @param live physical names of the files still referenced by a session
+     * @return the number of orphans found
+     */
+    public int sweep(Set<String> live) {
+        File root = Util.getFile("");
+        ConcurrentLinkedQueue<String> found = new ConcurrentLinkedQueue<String>();
+        ForkJoinPool.commonPool().invoke(new Scan(root, "", live, System.currentTimeMillis() - grace, found));
+        release(found);
+        log.info("Startup sweep found " + found.size() + " orphaned version files");
+        return found.size();
+    }
+
+    /** Runs {@link #sweep(Set)} in background, if enabled in the configuration. */
+    public void sweepAtStartup(final Set<String> live) {
+        if (!sweep)
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sweep(Collections.unmodifiableSet(live));
+            }
+        });
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.andxor.web2sign.store;
+
+/**
+ * Parsed <code>/api/*</code> path info, in the form <code>/[prefix-]token/[index[/asset]]</code>.
+ * <p>
+ * Parsing is a single pass over the characters which doesn't allocate anything but the result,
+ * so that junk requests are rejected as cheaply as possible; prefix and token strings are only
+ * extracted when asked for.
+ */
+final class Route {
+
+    public static final String HOOK = "hook.js";
+    public static final String QR = "qr.png";
+
+    private static final int MAX_INDEX_DIGITS = 6;
+
+    private final String path;
+    private final int prefixEnd; // 0 if no prefix is present (it would start at 1)
+    private final int tokenStart, tokenEnd;
+    private final int index; // -1 if missing
+    private final String asset; // null if missing
+
+    private String prefix, token;
+
+    private Route(String path, int prefixEnd, int tokenStart, int tokenEnd, int index, String asset) {
+        this.path = path;
+        this.prefixEnd = prefixEnd;
+        this.tokenStart = tokenStart;
+        this.tokenEnd = tokenEnd;
+        this.index = index;
+        this.asset = asset;
+    }
+
+    private static boolean isAlnum(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    /**
+     * Parses the path info of a request.
+     *
+     * @param path the path info, may be <code>null</code>
+     * @return the parsed route, or <code>null</code> if the path is not valid
+     */
+    public static Route parse(String path) {
+        if (path == null)
+            return null;
+        final int len = path.length();
+        if (len < 2 || path.charAt(0) != '/')
+            return null;
+        // prefix and token
+        int pos = 1, prefixEnd = 0;
+        char c = 0;
+        while (pos < len) {
+            c = path.charAt(pos);
+            if (c == '-' && prefixEnd == 0 && pos > 1)
+                prefixEnd = pos;
+            else if (!isAlnum(c))
+                break;
+            ++pos;
+        }
+        final int tokenStart = (prefixEnd == 0) ? 1 : prefixEnd + 1;
+        final int tokenEnd = pos;
+        if (c != '/' || !Util.isTokenShaped(path, tokenStart, tokenEnd))
+            return null;
+        // index
+        int index = -1, digits = 0;
+        while (++pos < len) {
+            c = path.charAt(pos);
+            if (c < '0' || c > '9')
+                break;
+            if (++digits > MAX_INDEX_DIGITS)
+                return null;
+            index = (index < 0 ? 0 : index * 10) + (c - '0');
+        }
+        if (pos == len)
+            return new Route(path, prefixEnd, tokenStart, tokenEnd, index, null);
+        // asset
+        if (index < 0 || c != '/')
+            return null;
+        ++pos;
+        String asset;
+        if (path.regionMatches(pos, HOOK, 0, HOOK.length()))
+            asset = HOOK;
+        else if (path.regionMatches(pos, QR, 0, QR.length()))
+            asset = QR;
+        else
+            return null;
+        if (pos + asset.length() != len)
+            return null;
+        return new Route(path, prefixEnd, tokenStart, tokenEnd, index, asset);
+    }
+
+    /** Returns the tenant prefix, <code>null</code> if missing. */
+    public String getPrefix() {
+        if (prefix == null && prefixEnd != 0)
+            prefix = path.substring(1, prefixEnd);
+        return prefix;
+    }
+
+    public String getToken() {
+        if (token == null)
+            token = path.substring(tokenStart, tokenEnd);
+        return token;
+    }
+
+    /** Returns the file index, -1 if missing. */
+    public int getIndex() {
+        return index;
+    }
+
+    /** Returns the requested static asset (either {@link #HOOK} or {@link #QR}), <code>null</code> if missing. */
+    public String getAsset() {
+        return asset;
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.andxor.web2sign.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The <code>signature</code> block of a configured file, compiled once when the configuration is read.
+ * <p>
+ * The block contains <code>*def</code> defaults for all fields, <code>*add</code> and <code>*inv</code> settings for
+ * new visible and invisible signatures, and per-field overrides. The resolved (deep merged) settings of each case are
+ * computed once and are immutable, as is the pre-encoded JSON sent to the client: sessions and versions share this
+ * object, so signature data is never copied.
+ */
+final class Signatures implements JSON.Raw {
+
+    public static final String DEF = "*def";
+    public static final String ADD = "*add";
+    public static final String INV = "*inv";
+
+    private final String json;
+    private final Map<String, Object> def, add, inv;
+    private final Map<String, Map<String, Object>> fields;
+
+    Signatures(JSON.Obj conf) {
+        json = JSON.encode(conf, false);
+        JSON.Obj d = conf.getObj(DEF);
+        def = freeze(JSON.Obj.mergeDeep(d));
+        add = freeze(JSON.Obj.mergeDeep(d, conf.getObj(ADD)));
+        inv = freeze(JSON.Obj.mergeDeep(d, conf.getObj(INV)));
+        Map<String, Map<String, Object>> m = new HashMap<String, Map<String, Object>>();
+        for (Map.Entry<String, Object> e : conf.entrySet())
+            if (!e.getKey().startsWith("*") && e.getValue() instanceof JSON.Obj)
+                m.put(e.getKey(), freeze(JSON.Obj.mergeDeep(d, (JSON.Obj) e.getValue())));
+        fields = Collections.unmodifiableMap(m);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T freeze(Object o) {
+        if (o instanceof Map) {
+            Map<String, Object> m = new JSON.Obj();
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) o).entrySet())
+                m.put(e.getKey(), freeze(e.getValue()));
+            return (T) Collections.unmodifiableMap(m);
+        } else if (o instanceof Object[] || o instanceof List) {
+            List<Object> l = new ArrayList<Object>();
+            for (Object e : (o instanceof List) ? (List<Object>) o : Arrays.asList((Object[]) o))
+                l.add(freeze(e));
+            return (T) Collections.unmodifiableList(l);
+        }
+        return (T) o; // strings, numbers and booleans are immutable already
+    }
+
+    /**
+     * Returns the settings of an existing field.
+     *
+     * @param field field name
+     * @return the overrides merged over the defaults, or just the defaults if the field has no overrides
+     */
+    public Map<String, Object> resolve(String field) {
+        Map<String, Object> m = fields.get(field);
+        return (m != null) ? m : def;
+    }
+
+    /** Returns the settings used to add a new visible signature. */
+    public Map<String, Object> getAdd() {
+        return add;
+    }
+
+    /** Returns the settings used to add a new invisible signature. */
+    public Map<String, Object> getInvisible() {
+        return inv;
+    }
+
+    @Override
+    public String toJSON() {
+        return json;
+    }
+
+}
@@ -1,19 +1,29 @@
 package com.andxor.web2sign.store;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
@@ -24,76 +34,450 @@ import org.slf4j.LoggerFactory;
  */
 public class Store extends HttpServlet {
 
-    private static final Pattern PATH  = Pattern.compile("/(?:[0-9A-Za-z]+-)?([0-9A-Za-z]+)/(?:([0-9]+)(?:/(hook[.]js|qr[.]png))?)?");
     private static final String SCRIPT = "hook.js";
     private static final int MAX_AGE = 3600;
+    /** Header marking an incremental upload, containing the hash of the base version. */
+    private static final String DELTA = "X-W2S-Delta";
+    /** Header containing the SHA-256 of a chunk of a resumable upload. */
+    private static final String CHUNK_HASH = "X-W2S-Chunk-Hash";
 
     private static final Logger log = LoggerFactory.getLogger(Store.class);
 
     /* example session management, use a "real" one for production */
     private final static int MAX_SESSIONS = 100;
-    private final static Map<String, ArrayList<JSON.Obj>> sessions = new LinkedHashMap<String, ArrayList<JSON.Obj>>(MAX_SESSIONS + 1, .75F, true) {
-        @Override
-        public boolean removeEldestEntry(Map.Entry<String, ArrayList<JSON.Obj>> eldest) {
-            return size() > MAX_SESSIONS;
+    // access order, so that the eldest entries are the least recently used ones
+    private final static Map<String, Session> sessions = new LinkedHashMap<String, Session>(MAX_SESSIONS + 1, .75F, true);
+
+    /** State of a session, guarded by sessions (apart from the files, which are guarded by themselves). */
+    private static final class Session {
+
+        final String prefix; // of the tenant, null if none
+        final ArrayList<JSON.Obj> files;
+        final long epoch; // at which this node got the session, see Cluster
+        long lastAccess = System.currentTimeMillis();
+
+        Session(String prefix, ArrayList<JSON.Obj> files, long epoch) {
+            this.prefix = prefix;
+            this.files = files;
+            this.epoch = epoch;
         }
-    };
 
-    private ArrayList<JSON.Obj> authenticate(String token) {
-        return sessions.get(token);
     }
 
-    protected static String generate() {
-        // create initial state of a new session
-        ArrayList<JSON.Obj> files = new ArrayList<JSON.Obj>();
+    // runs requests in virtual threads, null to run them in the container threads
+    private ExecutorService executor;
+
+    @Override
+    public void init() throws ServletException {
+        // look for files left behind by a previous run
+        Set<String> live = new HashSet<String>();
+        for (JSON.Obj file : Config.get().getFiles())
+            live.add(file.getString("filename"));
+        synchronized (sessions) {
+            for (Session session : sessions.values())
+                live.addAll(Versions.owned(session.files));
+        }
+        Cluster cluster = Cluster.get();
+        if (cluster != null)
+            for (String token : cluster.saved()) {
+                Cluster.Saved saved = cluster.restore(token);
+                if (saved != null)
+                    live.addAll(Versions.owned(saved.getFiles()));
+            }
+        Reclaimer.get().sweepAtStartup(live);
+        // discard partial uploads of a previous run
+        Uploads.get();
+        log.info("Using the Java " + Platform.version() + " platform implementation");
+        if (Boolean.TRUE.equals(Util.getConfig().getBool("virtualThreads"))) {
+            executor = Platform.newVirtualThreadExecutor("w2s-request");
+            if (executor == null)
+                log.warn("Virtual threads are not available on Java " + System.getProperty("java.version"));
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    /**
+     * Hands requests over to virtual threads, if enabled: they spend most of their time waiting for
+     * network, disk and journal commits, which then doesn't keep a container thread busy.
+     */
+    @Override
+    protected void service(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        if (executor == null || !request.isAsyncSupported()) {
+            super.service(request, response);
+            return;
+        }
+        final AsyncContext async = request.startAsync();
+        async.setTimeout(0); // just like requests in container threads
+        // the container can reset the paths once this dispatch returns
+        final String servletPath = request.getServletPath(), pathInfo = request.getPathInfo();
+        final HttpServletRequest frozen = new HttpServletRequestWrapper(request) {
+            @Override
+            public String getServletPath() {
+                return servletPath;
+            }
+
+            @Override
+            public String getPathInfo() {
+                return pathInfo;
+            }
+        };
         try {
-            for (Object o : (Object[]) Util.getConfig().get("files"))
-                files.add((JSON.Obj) o);
-        } catch (Exception e) {
-            throw new RuntimeException("Configuration error in 'files'", e);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Store.super.service(frozen, response);
+                    } catch (Throwable t) {
+                        log.error("Error", t);
+                        if (!response.isCommitted())
+                            response.setStatus(500);
+                    } finally {
+                        async.complete();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            response.sendError(503, "Service unavailable");
+            async.complete();
+        }
+    }
+
+    /**
+     * Checks if this node still owns a session, as only the owner may release its files: a session taken over by
+     * another node keeps using them.
+     */
+    private static boolean owned(String token, Session session) {
+        Cluster cluster = Cluster.get();
+        // the epoch only changes when another node claims the session
+        return cluster == null || cluster.epoch(token) == session.epoch;
+    }
+
+    /**
+     * Releases a session once removed, outside of the sessions lock: it accesses the shared storage, which would
+     * keep the lock (and, with virtual threads, the carrier thread) busy.
+     */
+    private static void release(String token, Session session) {
+        if (!owned(token, session)) {
+            log.info("Session removed, now owned by another node: " + token);
+            return;
+        }
+        log.info("Session removed: " + token);
+        Reclaimer.get().release(Versions.owned(session.files));
+        Cluster cluster = Cluster.get();
+        if (cluster != null)
+            cluster.forget(token);
+    }
+
+    /**
+     * Removes the sessions which have not been used recently.
+     *
+     * @param timeout maximum inactivity in milliseconds, 0 to never expire
+     */
+    static void expire(long timeout) {
+        if (timeout <= 0)
+            return;
+        long limit = System.currentTimeMillis() - timeout;
+        Map<String, Session> expired = new LinkedHashMap<String, Session>();
+        synchronized (sessions) {
+            // access order means the eldest entries are the least recently used ones
+            Iterator<Map.Entry<String, Session>> i = sessions.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<String, Session> e = i.next();
+                if (e.getValue().lastAccess >= limit)
+                    break;
+                expired.put(e.getKey(), e.getValue());
+                i.remove();
+            }
+        }
+        for (Map.Entry<String, Session> e : expired.entrySet())
+            release(e.getKey(), e.getValue());
+    }
+
+    /**
+     * Adds a session, with the sessions lock held, making room for it if needed.
+     * A tenant at its quota replaces its own least recently used session, and when the whole table is full the one
+     * of the tenant with most sessions goes: this way a single tenant can't evict the sessions of the other ones.
+     *
+     * @return the evicted session, to be released once the lock is released, or <code>null</code>
+     */
+    private static Map.Entry<String, Session> put(String token, Session session) {
+        String tenant = Tenants.get(session.prefix).getName();
+        int quota = Tenants.get(session.prefix).getMaxSessions();
+        Map<String, Integer> count = new HashMap<String, Integer>();
+        Map<String, String> eldest = new HashMap<String, String>(); // of each tenant
+        for (Map.Entry<String, Session> e : sessions.entrySet()) {
+            String name = Tenants.get(e.getValue().prefix).getName();
+            Integer n = count.get(name);
+            count.put(name, (n == null) ? 1 : n + 1);
+            if (n == null)
+                eldest.put(name, e.getKey());
+        }
+        String victim = null;
+        if (quota > 0 && count.containsKey(tenant) && count.get(tenant) >= quota) {
+            victim = eldest.get(tenant);
+        } else if (sessions.size() >= MAX_SESSIONS) {
+            String biggest = null;
+            for (Map.Entry<String, Integer> e : count.entrySet())
+                if (biggest == null || e.getValue() > count.get(biggest))
+                    biggest = e.getKey();
+            victim = eldest.get(biggest);
+        }
+        Map.Entry<String, Session> evicted = null;
+        if (victim != null)
+            evicted = new AbstractMap.SimpleEntry<String, Session>(victim, sessions.remove(victim));
+        sessions.put(token, session);
+        return evicted;
+    }
+
+    private Session authenticate(String token) throws IOException {
+        Cluster cluster = Cluster.get();
+        // a copy from before the session was last taken over is stale
+        long epoch = (cluster == null) ? 0 : cluster.epoch(token);
+        synchronized (sessions) {
+            Session session = sessions.get(token);
+            if (session != null && session.epoch == epoch) {
+                session.lastAccess = System.currentTimeMillis();
+                return session;
+            }
+        }
+        if (cluster == null || !cluster.isSaved(token))
+            return null;
+        // the owner node is gone (or it's this one, restarted), and we're the one taking over
+        if (!cluster.owns(token, epoch)) {
+            epoch = cluster.claim(token, epoch);
+            if (epoch < 0) {
+                log.warn("Session taken over by another node meanwhile: " + token);
+                return null;
+            }
+        }
+        // read once claimed, as the previous owner can't save it anymore
+        Cluster.Saved saved = cluster.restore(token);
+        if (saved == null)
+            return null;
+        Session session;
+        Map.Entry<String, Session> evicted = null;
+        synchronized (sessions) {
+            // check again, as another request could have taken it over meanwhile
+            session = sessions.get(token);
+            if (session == null || session.epoch < epoch) {
+                log.info("Session taken over from shared storage: " + token);
+                session = new Session(saved.getPrefix(), saved.getFiles(), epoch);
+                sessions.remove(token); // a stale copy doesn't own its files anymore
+                evicted = put(token, session);
+            }
+            session.lastAccess = System.currentTimeMillis();
+        }
+        if (evicted != null)
+            release(evicted.getKey(), evicted.getValue());
+        return session;
+    }
+
+    /**
+     * Forgets the local copy of a session which is served by another node, without releasing its files.
+     *
+     * @param token the session token
+     */
+    static void drop(String token) {
+        synchronized (sessions) {
+            if (sessions.remove(token) != null)
+                log.info("Session moved to another node: " + token);
         }
+    }
+
+    /**
+     * Creates a new session, charging its creation to the tenant.
+     *
+     * @param prefix the tenant prefix of the token, <code>null</code> if none
+     * @return the session token, or <code>null</code> if the tenant exceeded its rate limit
+     */
+    protected static String generate(String prefix) {
+        Tenants.Tenant tenant = Tenants.get(prefix);
+        if (!tenant.tryAcquire()) {
+            log.warn("Rate limit superato: " + tenant.getName());
+            return null;
+        }
+        // create initial state of a new session
+        // configured files are shared by all sessions, and never modified
+        Session session = new Session(prefix, new ArrayList<JSON.Obj>(Config.get().getFiles()), 0);
         // create session
         String token = Util.uniqueToken();
-        sessions.put(token, files);
+        Map.Entry<String, Session> evicted;
+        synchronized (sessions) {
+            evicted = put(token, session);
+        }
+        if (evicted != null)
+            release(evicted.getKey(), evicted.getValue());
+        Cluster cluster = Cluster.get();
+        if (cluster != null)
+            cluster.save(token, prefix, session.epoch, session.files);
         return token;
     }
 
+    /**
+     * Saves the state of a session to the cluster shared storage, if it's still available.
+     *
+     * @param token the session token
+     * @return false if the session has been taken over by another node
+     */
+    static boolean save(String token) {
+        Cluster cluster = Cluster.get();
+        if (cluster == null)
+            return true;
+        Session session;
+        synchronized (sessions) {
+            session = sessions.get(token);
+        }
+        return session == null || cluster.save(token, session.prefix, session.epoch, session.files);
+    }
+
+    private static ArrayList<JSON.Obj> snapshot(ArrayList<JSON.Obj> files) {
+        synchronized (files) {
+            return new ArrayList<JSON.Obj>(files);
+        }
+    }
+
+    /** Returns a file of a session, whose index has already been checked: files are only ever added or replaced. */
+    private static JSON.Obj file(ArrayList<JSON.Obj> files, int index) {
+        synchronized (files) {
+            return files.get(index);
+        }
+    }
+
+    /**
+     * Resolves the session a route refers to, checking the file index is in range.
+     *
+     * @return the session files, or <code>null</code> if the request was rejected
+     */
+    private ArrayList<JSON.Obj> authenticate(Route route, HttpServletResponse response) throws IOException {
+        Session session = authenticate(route.getToken());
+        if (session == null) {
+            log.warn("Token errato");
+            reject(response, "Richiesta non valida", "Troppe richieste");
+            return null;
+        }
+        if (!Objects.equals(route.getPrefix(), session.prefix)) {
+            log.warn("Prefisso errato: " + route.getPrefix());
+            reject(response, "Richiesta non valida", "Troppe richieste");
+            return null;
+        }
+        int size;
+        synchronized (session.files) {
+            size = session.files.size();
+        }
+        if (route.getIndex() >= size) {
+            log.warn("Indice fuori dai limiti: " + route.getIndex());
+            response.sendError(400, "Richiesta non valida");
+            return null;
+        }
+        return session.files;
+    }
+
+    /**
+     * Rejects a request which can't be authenticated, charging it to the bucket of unauthenticated requests:
+     * once that is empty they get 429 instead of 400, so that guessing tokens slows down.
+     */
+    static void reject(HttpServletResponse response, String invalid, String tooMany) throws IOException {
+        if (Tenants.unauthenticated().tryAcquire())
+            response.sendError(400, invalid);
+        else
+            response.sendError(429, tooMany);
+    }
+
+    /**
+     * Charges a request to the tenant of its (authenticated) session.
+     *
+     * @param upload true to also take one of the concurrent upload slots, to be given back with
+     *               {@link Tenants.Tenant#endUpload()}
+     * @return the tenant, or <code>null</code> if the request was rejected
+     */
+    private static Tenants.Tenant charge(Route route, boolean upload, HttpServletResponse response) throws IOException {
+        Tenants.Tenant tenant = Tenants.get(route.getPrefix());
+        if (!tenant.tryAcquire() || (upload && !tenant.beginUpload())) {
+            log.warn((upload ? "Rate limit exceeded: " : "Rate limit superato: ") + tenant.getName());
+            response.sendError(429, upload ? "Too many requests" : "Troppe richieste");
+            return null;
+        }
+        return tenant;
+    }
+
+    /**
+     * Parses the <code>X-W2S-JSON</code> header, only call this when its values are actually needed.
+     * These parameters can be used to know what has been done by web2sign in this update:
+     * "Hash" is the old document hash (to know which one in the document array it is),
+     * "Hash-New" is the new hash (to check it was received properly),
+     * "Operation" is what was done and "Field" is the field on which the operation was done.
+     * <pre>
+     * {
+     *   "Hash": "1B8D882EC4CC04C4FD5D4100DF322EAE3FB1BE3D1F752297846A027644B8B25B",
+     *   "Operation": "add+sign",
+     *   "Field": "Signature1",
+     *   "Hash-New": "E28DDE55AFCCA6A1A7F260351D1D38871A0A7B4CED3905C30DF1B946ECC6AD66"
+     * }
+     * </pre>
+     */
+    private static JSON.Obj params(HttpServletRequest request) throws JSON.Parser.Exception {
+        String header = request.getHeader("X-W2S-JSON");
+        if (header == null)
+            return new JSON.Obj();
+        return new JSON.Parser(header, false).getObject();
+    }
+
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         log.info("Request: " + request.getPathInfo());
-        Matcher pathMatcher = PATH.matcher(request.getPathInfo());
-        if (!pathMatcher.matches()) {
+        Route route = Route.parse(request.getPathInfo());
+        if (route == null) {
             log.warn("Uso errato della servlet: " + request.getPathInfo());
-            response.sendError(400, "Richiesta non valida");
+            reject(response, "Richiesta non valida", "Troppe richieste");
             return;
         }
-        final String token = pathMatcher.group(1);
-        final String file = pathMatcher.group(2);
-        final String extra = pathMatcher.group(3);
-        ArrayList<JSON.Obj> files = authenticate(token);
-        if (files == null) {
-            log.warn("Token errato");
-            response.sendError(400, "Richiesta non valida");
-        }
+        Cluster cluster = Cluster.get();
+        if (cluster != null && cluster.dispatch(route.getToken(), request, response))
+            return;
+        ArrayList<JSON.Obj> files = authenticate(route, response);
+        if (files == null || charge(route, false, response) == null)
+            return;
+        final int num = route.getIndex();
+        final String extra = route.getAsset();
         try {
-            if (file == null) {
+            if (num < 0) {
                 // with no file parameter, we're sending the list of available files
                 response.setContentType("application/json;charset=UTF-8");
                 response.setHeader("Cache-Control", "max-age=0"); // list changes in time
-                JSON.encode(response.getOutputStream(), JSON.obj("script", SCRIPT, "files", files), true);
+                // compact unless asked otherwise, to save bytes on mobile connections
+                boolean pretty = request.getParameter("pretty") != null;
+                byte[] body = JSON.encode(JSON.obj("script", SCRIPT, "files", snapshot(files)), true, pretty).getBytes(StandardCharsets.UTF_8);
+                Compression.get().send(request, response, body, null);
             } else if (extra == null) {
                 // with file parameter, we're sending the file content
                 response.setContentType("application/octet-stream");
                 response.setHeader("Cache-Control", "max-age=" + MAX_AGE); // files are added but never change
-                int num = Integer.parseInt(file);
-                Util.inToOut(
-                        new FileInputStream(Util.getFile((String) files.get(num).get("filename"))),
-                        response.getOutputStream());
+                final ArrayList<JSON.Obj> session = files;
+                final JSON.Obj info = file(files, num);
+                Compression.get().send(request, response, Versions.hash(files, info), Versions.length(files, info), new Compression.Source() {
+                    @Override
+                    public InputStream open() throws IOException {
+                        return Versions.open(session, info);
+                    }
+                });
             } else {
                 // with extra parameter, we're sending the example static files
-                response.setContentType(extra.endsWith(".png") ? "image/png" : "text/javascript");
+                response.setContentType(Route.QR.equals(extra) ? "image/png" : "text/javascript");
                 response.setHeader("Cache-Control", "max-age=" + MAX_AGE);
-                Util.inToOut(getServletContext().getResourceAsStream("/" + extra), response.getOutputStream());
+                InputStream is = getServletContext().getResourceAsStream("/" + extra);
+                byte[] body;
+                try {
+                    body = Util.inToArray(is);
+                } finally {
+                    is.close();
+                }
+                Compression.get().send(request, response, body, "asset:" + extra);
             }
         } catch (Throwable t) {
             log.error("Errore", t);
@@ -104,58 +488,311 @@ public class Store extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         log.info("Request: " + request.getPathInfo());
-        Matcher pathMatcher = PATH.matcher(request.getPathInfo());
-        if (!pathMatcher.matches()) {
+        Route route = Route.parse(request.getPathInfo());
+        if (route == null || route.getIndex() < 0 || route.getAsset() != null) {
             log.warn("Uso errato della servlet: " + request.getPathInfo());
-            response.sendError(400, "Invalid request");
+            reject(response, "Invalid request", "Too many requests");
             return;
         }
+        Cluster cluster = Cluster.get();
+        if (cluster != null && cluster.dispatch(route.getToken(), request, response))
+            return;
+        ArrayList<JSON.Obj> files = authenticate(route, response);
+        if (files == null)
+            return;
+        // reject as early as possible, before the body is read
+        Tenants.Tenant tenant = charge(route, true, response);
+        if (tenant == null)
+            return;
         try {
-            JSON.Obj params = new JSON.Parser(request.getHeader("X-W2S-JSON"), false).getObject();
-            // these parameters can be used to know what has been done by web2sign in this update
-            // "Hash" is the old document hash (to know which one in the document array it is)
-            // "Hash-New" is the new hash, to check it was received properly
-            // "Operation" is what was done
-            // "Field" is the field on which the peration was done
-            log.debug("Received headers: " + JSON.encode(params, true, true));
-            /*
-            Received headers: {
-              "Hash": "1B8D882EC4CC04C4FD5D4100DF322EAE3FB1BE3D1F752297846A027644B8B25B",
-              "Operation": "add+sign",
-              "Field": "Signature1",
-              "Hash-New": "E28DDE55AFCCA6A1A7F260351D1D38871A0A7B4CED3905C30DF1B946ECC6AD66"
+            upload(request, response, route, files);
+        } finally {
+            tenant.endUpload();
+        }
+    }
+
+    /** Audit record of a signing operation, as received from web2sign. */
+    private static JSON.Obj event(Route route, JSON.Obj fileInfo, JSON.Obj newInfo, JSON.Obj params) {
+        // the token is a credential, only record a digest of it
+        byte[] session = Util.arrayToHash(route.getToken().getBytes(StandardCharsets.US_ASCII));
+        return JSON.obj(
+                "time", System.currentTimeMillis(),
+                "tenant", route.getPrefix(),
+                "session", Util.toHex(Arrays.copyOf(session, 8)),
+                "index", route.getIndex(),
+                "base", fileInfo.getString("filename"),
+                "filename", newInfo.getString("filename"),
+                "hash", newInfo.getString("hash"),
+                "Hash", params.getString("Hash"),
+                "Hash-New", params.getString("Hash-New"),
+                "Operation", params.getString("Operation"),
+                "Field", params.getString("Field"));
+    }
+
+    private void upload(HttpServletRequest request, HttpServletResponse response, Route route, ArrayList<JSON.Obj> files) throws IOException {
+        final int num = route.getIndex();
+        final String deltaBase = request.getHeader(DELTA);
+        final Journal journal = Journal.get();
+        JSON.Obj params = null;
+        if (journal != null || deltaBase != null || log.isDebugEnabled()) try {
+            params = params(request);
+            if (log.isDebugEnabled()) {
+                log.debug("Received headers: " + JSON.encode(params, true, true));
+                Signatures sig = Config.getSignatures(file(files, num));
+                if (sig != null && params.getString("Field") != null)
+                    log.debug("Field settings: " + JSON.encode(sig.resolve(params.getString("Field")), true));
             }
-            */
         } catch (Exception e) {
             log.error("web2sign didn’t return valid headers", e);
-            response.sendError(500, "Errore");
+            response.sendError(500, "Error");
+            return;
         }
-
-        final String token = pathMatcher.group(1);
-        final String file = pathMatcher.group(2);
-        final int num = Integer.parseInt(file);
-        ArrayList<JSON.Obj> files = authenticate(token);
-        if (files == null) {
-            log.warn("Token errato");
-            response.sendError(400, "Invalid request");
+        // reserve the disk space, waiting if needed: the length is checked again while reading, as it may be unknown
+        Budget.Reservation budget;
+        try {
+            budget = Budget.get().reserve(0, Math.max(0, contentLength(request)));
+        } catch (Budget.ExceededException e) {
+            busy(response, e);
+            return;
         }
         try {
             // in this example we have an array of files, and we decide to add any document update at the end of the array
             // in single-document examples it would be more common to just replace the only file with new version
-            byte[] data = Util.inToArray(request.getInputStream());
-            JSON.Obj fileInfo = files.get(num);
-            String oldFilename = fileInfo.getString("filename");
-            File newFile = Util.newFile(oldFilename);
-            FileOutputStream fos = new FileOutputStream(newFile);
-            fos.write(data);
-            fos.close();
-            files.add(JSON.Obj.merge(fileInfo, JSON.obj(
-                    "filename", newFile.getName(),
-                    "hash", Util.toHex(Util.arrayToHash(data))
-            )));
-            response.setContentType("application/json;charset=UTF-8");
-            response.setHeader("Cache-Control", "max-age=0");
-            JSON.encode(response.getOutputStream(), JSON.obj("files", files), true);
+            JSON.Obj fileInfo = file(files, num);
+            InputStream body = budget.meter(request.getInputStream());
+            JSON.Obj newInfo;
+            if (deltaBase != null) {
+                // incremental update: the body only contains the bytes appended to the base version
+                try {
+                    newInfo = Versions.appendDelta(files, fileInfo, deltaBase, params.getString("Hash-New"), body);
+                } catch (Versions.HashMismatchException e) {
+                    log.warn("Delta upload rejected: " + e.getMessage());
+                    response.sendError(409, e.getMessage());
+                    return;
+                }
+            } else {
+                // streamed to disk, as buffering it would let a few big uploads exhaust the heap
+                newInfo = Versions.store(fileInfo, body);
+            }
+            addVersion(route, files, fileInfo, newInfo, params, request, response);
+        } catch (Budget.ExceededException e) {
+            busy(response, e);
+        } catch (Throwable t) {
+            log.error("Error", t);
+            response.sendError(500, "Error");
+        } finally {
+            budget.close();
+        }
+    }
+
+    /** Returns the <code>Content-Length</code> of a request, -1 if unknown. */
+    private static long contentLength(HttpServletRequest request) {
+        String len = request.getHeader("Content-Length");
+        try {
+            return (len == null) ? -1 : Long.parseLong(len.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void busy(HttpServletResponse response, Budget.ExceededException e) throws IOException {
+        log.warn("Upload rejected: " + e.getMessage());
+        if (e instanceof Budget.TooBigException) {
+            // retrying wouldn't help
+            response.sendError(413, "Upload too big");
+            return;
+        }
+        response.setHeader("Retry-After", "1");
+        response.sendError(503, "Server busy");
+    }
+
+    /** Adds a new version to the session, and sends the updated list of files. */
+    private void addVersion(Route route, ArrayList<JSON.Obj> files, JSON.Obj fileInfo, JSON.Obj newInfo, JSON.Obj params,
+                            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // recorded before being published, so that no one ever sees a version which hasn't been audited
+        Journal journal = Journal.get();
+        if (journal != null) {
+            try {
+                journal.append(event(route, fileInfo, newInfo, params));
+            } catch (IOException e) {
+                log.error("Version not published", e);
+                Reclaimer.get().release(Collections.singleton(Versions.physicalName(newInfo)));
+                response.sendError(500, "Error");
+                return;
+            }
+        }
+        synchronized (files) {
+            files.add(newInfo);
+        }
+        if (!save(route.getToken())) {
+            // taken over by another node meanwhile, which would never see this version: it must be sent there
+            drop(route.getToken());
+            Reclaimer.get().release(Collections.singleton(Versions.physicalName(newInfo)));
+            response.setHeader("Retry-After", "1");
+            response.sendError(503, "Session moved");
+            return;
+        }
+        if (newInfo.getString(Versions.PARENT) != null)
+            Versions.compactIfNeeded(route.getToken(), files, newInfo);
+        response.setContentType("application/json;charset=UTF-8");
+        response.setHeader("Cache-Control", "max-age=0");
+        byte[] body = JSON.encode(JSON.obj("files", snapshot(files)), true).getBytes(StandardCharsets.UTF_8);
+        Compression.get().send(request, response, body, null);
+    }
+
+    /**
+     * Resumable upload of a new version, in chunks.
+     * <p>
+     * Each chunk is a <code>PUT</code> with <code>Content-Range: bytes first-last/total</code> and its SHA-256 in
+     * <code>X-W2S-Chunk-Hash</code>, and must start at the committed offset; the response contains the new committed
+     * offset as <code>{"offset": n, "length": total}</code>, with status 409 if the chunk was not accepted. An empty
+     * <code>PUT</code> with <code>Content-Range: bytes &#42;/total</code> asks for the committed offset, to resume an
+     * interrupted upload, which is 0 until the first chunk starts it; a session can have a limited number of uploads
+     * in progress, with status 429 beyond that. The last chunk also needs the usual <code>X-W2S-JSON</code> header,
+     * and once its <code>Hash-New</code> is verified the response is the same of a <code>POST</code>.
+     */
+    @Override
+    protected void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        log.info("Request: " + request.getPathInfo());
+        Route route = Route.parse(request.getPathInfo());
+        if (route == null || route.getIndex() < 0 || route.getAsset() != null) {
+            log.warn("Uso errato della servlet: " + request.getPathInfo());
+            reject(response, "Invalid request", "Too many requests");
+            return;
+        }
+        Cluster cluster = Cluster.get();
+        if (cluster != null && cluster.dispatch(route.getToken(), request, response))
+            return;
+        ArrayList<JSON.Obj> files = authenticate(route, response);
+        if (files == null)
+            return;
+        Tenants.Tenant tenant = charge(route, true, response);
+        if (tenant == null)
+            return;
+        try {
+            chunk(request, response, route, files);
+        } finally {
+            tenant.endUpload();
+        }
+    }
+
+    private static void sendOffset(HttpServletResponse response, int status, Uploads.Upload u) throws IOException {
+        sendOffset(response, status, u.getCommitted(), u.getTotal());
+    }
+
+    private static void sendOffset(HttpServletResponse response, int status, long offset, long total) throws IOException {
+        response.setStatus(status);
+        response.setContentType("application/json;charset=UTF-8");
+        response.setHeader("Cache-Control", "max-age=0");
+        JSON.encode(response.getOutputStream(), JSON.obj("offset", offset, "length", total), true);
+    }
+
+    private void chunk(HttpServletRequest request, HttpServletResponse response, Route route, ArrayList<JSON.Obj> files) throws IOException {
+        final int num = route.getIndex();
+        long[] range = Uploads.parseRange(request.getHeader("Content-Range"));
+        if (range == null || range[2] == 0) {
+            log.warn("Invalid Content-Range: " + request.getHeader("Content-Range"));
+            response.sendError(400, "Invalid request");
+            return;
+        }
+        Uploads uploads = Uploads.get();
+        if (range[2] > uploads.getMaxSize()) {
+            log.warn("Upload too big: " + range[2]);
+            response.sendError(413, "Upload too big");
+            return;
+        }
+        try {
+            JSON.Obj fileInfo = file(files, num);
+            String key = route.getToken() + "/" + num;
+            Uploads.Upload u = uploads.find(key, range[2]);
+            if (u == null) {
+                // only the first chunk starts an upload
+                if (range[0] != 0) {
+                    sendOffset(response, range[0] < 0 ? 200 : 409, 0, range[2]);
+                    return;
+                }
+                u = uploads.open(key, range[2]);
+                if (u == null) {
+                    log.warn("Too many uploads in progress: " + route.getToken());
+                    response.sendError(429, "Too many uploads");
+                    return;
+                }
+            }
+            Uploads.Chunk chunk = null;
+            JSON.Obj params = null;
+            if (range[0] >= 0) {
+                String chunkHash = request.getHeader(CHUNK_HASH);
+                if (chunkHash == null) {
+                    log.warn("Missing " + CHUNK_HASH);
+                    response.sendError(400, "Invalid request");
+                    return;
+                }
+                // checked before accepting the last chunk, as a complete upload can't be retried
+                if (range[1] + 1 == range[2]) {
+                    try {
+                        params = params(request);
+                    } catch (Exception e) {
+                        log.error("web2sign didn’t return valid headers", e);
+                        response.sendError(500, "Error");
+                        return;
+                    }
+                }
+                // received before taking the lock, so that a slow client doesn't hold up the others
+                try {
+                    chunk = uploads.stage(request.getInputStream(), range[1] - range[0] + 1, chunkHash);
+                } catch (EOFException e) {
+                    chunk = null;
+                }
+            }
+            u.lock();
+            try {
+                if (u.isClosed()) {
+                    log.warn("Upload no longer in progress: " + key);
+                    sendOffset(response, 409, 0, range[2]);
+                    return;
+                }
+                if (range[0] < 0) {
+                    sendOffset(response, 200, u);
+                    return;
+                }
+                if (chunk == null) {
+                    log.warn("Chunk rejected at offset " + range[0]);
+                    sendOffset(response, 409, u);
+                    return;
+                }
+                if (range[0] != u.getCommitted()) {
+                    log.warn("Chunk out of order: " + range[0] + " instead of " + u.getCommitted());
+                    sendOffset(response, 409, u);
+                    return;
+                }
+                uploads.write(u, chunk);
+                if (!u.isComplete()) {
+                    sendOffset(response, 200, u);
+                    return;
+                }
+                String hash = u.getHash();
+                if (!hash.equalsIgnoreCase(params.getString("Hash-New"))) {
+                    log.warn("Upload rejected: hash is " + hash + " instead of " + params.getString("Hash-New"));
+                    uploads.discard(u);
+                    response.sendError(409, "Hash mismatch");
+                    return;
+                }
+                File newFile = Util.newFile(fileInfo.getString("filename"));
+                uploads.finish(u, newFile);
+                JSON.Obj newInfo = JSON.Obj.merge(fileInfo, JSON.obj(
+                        "filename", newFile.getName(),
+                        "hash", hash
+                ));
+                newInfo.remove(Versions.PARENT);
+                newInfo.remove(Versions.DATA);
+                addVersion(route, files, fileInfo, newInfo, params, request, response);
+            } finally {
+                u.unlock();
+                if (chunk != null)
+                    chunk.close();
+            }
+        } catch (Budget.ExceededException e) {
+            busy(response, e);
         } catch (Throwable t) {
             log.error("Error", t);
             response.sendError(500, "Error");
@@ -0,0 +1,158 @@
+package com.andxor.web2sign.store;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-tenant admission control, tenants being identified by the optional <code>prefix-</code> of the session token.
+ * <p>
+ * Limits are read from the <code>tenants</code> object in <code>config.json</code>, using the same
+ * <code>*def</code> convention as signature settings:
+ * <pre>
+ * "tenants": {
+ *     "*def": { "rate": 20, "burst": 40, "uploads": 4, "sessions": 50 },
+ *     "*anon": { "rate": 10, "burst": 20 },
+ *     "demo": { "rate": 50, "burst": 100, "uploads": 8 }
+ * }
+ * </pre>
+ * <code>rate</code> is in requests per second, <code>burst</code> is the bucket size, <code>uploads</code> is the
+ * maximum number of concurrent uploads and <code>sessions</code> the maximum number of open sessions; a missing or
+ * zero value means unlimited. The prefix is bound to the session when it is created, and requests are charged to the
+ * tenant only once the session is authenticated: the ones which can't be, whatever their prefix, are charged to the
+ * separate <code>*anon</code> bucket instead, so that they can't use up the one of a tenant.
+ * Prefixes not listed in the configuration all share the <code>*def</code> limits (and buckets).
+ * The limits are lock-free, so admission never becomes a point of contention.
+ */
+final class Tenants {
+
+    private static final String DEFAULT = "*def";
+    private static final String ANONYMOUS = "*anon";
+
+    private static final Config.Section<Tenants> instance = new Config.Section<Tenants>("tenants", false) {
+        @Override
+        protected Tenants create(JSON.Obj conf) {
+            return new Tenants(conf);
+        }
+    };
+
+    private final Map<String, Tenant> tenants;
+
+    static final class Tenant {
+
+        private final String name;
+        private final long interval; // nanoseconds between two requests at steady rate, 0 if unlimited
+        private final long tolerance; // how far in the future the theoretical arrival time can be
+        private final int maxUploads;
+        private final int maxSessions;
+        // "theoretical arrival time" of the next request (GCRA), which is equivalent to a token bucket
+        private final AtomicLong tat = new AtomicLong(System.nanoTime());
+        private final AtomicInteger uploads = new AtomicInteger();
+
+        private Tenant(String name, JSON.Obj conf) {
+            this.name = name;
+            Number rate = conf.getNumber("rate");
+            Number burst = conf.getNumber("burst");
+            Number uploads = conf.getNumber("uploads");
+            Number sessions = conf.getNumber("sessions");
+            if (rate == null || rate.doubleValue() <= 0) {
+                interval = 0;
+                tolerance = 0;
+            } else {
+                interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate.doubleValue());
+                tolerance = interval * Math.max(1, burst == null ? 1 : burst.longValue());
+            }
+            maxUploads = (uploads == null) ? 0 : uploads.intValue();
+            maxSessions = (sessions == null) ? 0 : sessions.intValue();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the maximum number of open sessions, 0 if unlimited. */
+        public int getMaxSessions() {
+            return maxSessions;
+        }
+
+        /**
+         * Takes a token from the bucket.
+         *
+         * @return <code>false</code> if the request exceeds the rate limit
+         */
+        public boolean tryAcquire() {
+            if (interval == 0)
+                return true;
+            while (true) {
+                long now = System.nanoTime();
+                long prev = tat.get();
+                long next = Math.max(prev, now) + interval;
+                if (next - now > tolerance)
+                    return false;
+                if (tat.compareAndSet(prev, next))
+                    return true;
+            }
+        }
+
+        /**
+         * Reserves one of the concurrent upload slots, to be released with {@link #endUpload()}.
+         *
+         * @return <code>false</code> if all the slots are already in use
+         */
+        public boolean beginUpload() {
+            if (maxUploads <= 0)
+                return true;
+            while (true) {
+                int n = uploads.get();
+                if (n >= maxUploads)
+                    return false;
+                if (uploads.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+
+        public void endUpload() {
+            if (maxUploads > 0)
+                uploads.decrementAndGet();
+        }
+
+    }
+
+    private Tenants(JSON.Obj conf) {
+        Map<String, Tenant> m = new HashMap<String, Tenant>();
+        JSON.Obj def = conf.getObj(DEFAULT);
+        m.put(DEFAULT, new Tenant(DEFAULT, def == null ? new JSON.Obj() : def));
+        JSON.Obj anon = conf.getObj(ANONYMOUS);
+        m.put(ANONYMOUS, new Tenant(ANONYMOUS, anon == null ? new JSON.Obj() : anon));
+        for (Map.Entry<String, Object> e : conf.entrySet())
+            if (!DEFAULT.equals(e.getKey()) && !ANONYMOUS.equals(e.getKey()))
+                m.put(e.getKey(), new Tenant(e.getKey(), JSON.Obj.merge(def, (JSON.Obj) e.getValue())));
+        tenants = Collections.unmodifiableMap(m);
+    }
+
+    /**
+     * Returns the tenant a prefix belongs to.
+     *
+     * @param prefix token prefix, <code>null</code> if missing
+     * @return the configured tenant, or the default one
+     */
+    public static Tenant get(String prefix) {
+        Map<String, Tenant> m = instance.get().tenants;
+        // prefixes are alphanumeric, so they can't match the special names
+        Tenant t = (prefix == null) ? null : m.get(prefix);
+        return (t != null) ? t : m.get(DEFAULT);
+    }
+
+    /**
+     * Returns the bucket of the requests which couldn't be authenticated.
+     *
+     * @return the <code>*anon</code> tenant, which is unlimited unless configured
+     */
+    public static Tenant unauthenticated() {
+        return instance.get().tenants.get(ANONYMOUS);
+    }
+
+}
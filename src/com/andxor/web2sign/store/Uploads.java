@@ -0,0 +1,439 @@
+package com.andxor.web2sign.store;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resumable uploads, sent in chunks which are written directly into a preallocated temporary file.
+ * <p>
+ * Each chunk is accepted only if it starts at the committed offset and matches its SHA-256, so that a client on a
+ * flaky connection can ask for the committed offset and resume from there. An upload is started by its first chunk,
+ * which reserves the whole length on the disk {@link Budget} until the upload completes or is discarded; asking for
+ * the offset doesn't start anything. A chunk is staged in a temporary file while it's received, so that a slow client
+ * only holds the upload lock while the chunk is copied into place. Configured by the <code>uploads</code> object in <code>config.json</code>:
+ * <pre>
+ * "uploads": {
+ *     "timeout": 3600,       // seconds of inactivity after which a partial upload is discarded
+ *     "maxSize": 1073741824, // maximum length of an upload
+ *     "perSession": 4        // uploads in progress in the same session
+ * }
+ * </pre>
+ */
+final class Uploads {
+
+    private static final Logger log = LoggerFactory.getLogger(Uploads.class);
+
+    private static final String DIR = ".uploads";
+    private static final Pattern RANGE = Pattern.compile("bytes (?:(\\d{1,18})-(\\d{1,18})|\\*)/(\\d{1,18})");
+
+    private static final Config.Section<Uploads> instance = new Config.Section<Uploads>("uploads", false) {
+        @Override
+        protected Uploads create(JSON.Obj conf) throws IOException {
+            return new Uploads(conf);
+        }
+    };
+
+    private final File dir;
+    private final long timeout; // milliseconds
+    private final long maxSize;
+    private final int perSession;
+    private final ReentrantLock opening = new ReentrantLock(); // counts and adds new uploads atomically
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+    private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(Util.daemonThreadFactory("w2s-uploads", Thread.MIN_PRIORITY));
+
+    /** State of an upload, callers must hold its lock. */
+    static final class Upload {
+
+        private final String key;
+        private final File file;
+        private final long total;
+        private final ReentrantLock lock = new ReentrantLock(); // rather than a monitor, which would pin virtual threads
+        private Budget.Reservation budget;
+        private long committed;
+        private MessageDigest digest; // of the committed bytes
+        private boolean closed; // finished or discarded
+        private volatile long lastUse = System.currentTimeMillis();
+
+        private Upload(String key, File file, long total) {
+            this.key = key;
+            this.file = file;
+            this.total = total;
+            this.digest = Util.sha256();
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getCommitted() {
+            return committed;
+        }
+
+        public boolean isComplete() {
+            return committed == total;
+        }
+
+        /** Returns true if the upload has been finished or discarded in the meantime, and can't be used any more. */
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public void lock() {
+            lock.lock();
+        }
+
+        public void unlock() {
+            lock.unlock();
+        }
+
+        /** Gives the disk space back to the budget, called with the lock held. */
+        private void release() {
+            if (budget != null) {
+                budget.close();
+                budget = null;
+            }
+        }
+
+        /** Returns the SHA-256 of the whole upload, once complete. */
+        public String getHash() {
+            try {
+                return Util.toHex(((MessageDigest) digest.clone()).digest());
+            } catch (CloneNotSupportedException e) {
+                throw new InternalError("SHA-256 should be cloneable", e);
+            }
+        }
+
+    }
+
+    private Uploads(JSON.Obj conf) throws IOException {
+        dir = Util.getFile(DIR);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create uploads directory: " + dir);
+        timeout = TimeUnit.SECONDS.toMillis(Util.number(conf, "timeout", 3600));
+        maxSize = Util.number(conf, "maxSize", 1L << 30);
+        perSession = (int) Util.number(conf, "perSession", 4);
+        // partial uploads of a previous run can't be resumed anyway, but in a cluster the directory is shared with
+        // the other nodes, so only the files which nobody has written to for longer than the timeout are abandoned
+        File[] old = dir.listFiles();
+        long limit = System.currentTimeMillis() - timeout;
+        if (old != null)
+            for (File f : old)
+                if (f.lastModified() < limit && !f.delete())
+                    log.warn("Cannot delete: " + f);
+        long period = Math.max(1000, timeout / 10);
+        cleaner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public static Uploads get() {
+        return instance.get();
+    }
+
+    /**
+     * Parses a <code>Content-Range</code> header, either <code>bytes first-last/total</code> for a chunk or
+     * <code>bytes &#42;/total</code> to ask for the committed offset.
+     *
+     * @param header the header value, may be <code>null</code>
+     * @return first and last byte and total length, with first and last being -1 for a query,
+     *         or <code>null</code> if not valid
+     */
+    public static long[] parseRange(String header) {
+        if (header == null)
+            return null;
+        Matcher m = RANGE.matcher(header.trim());
+        if (!m.matches())
+            return null;
+        long total = Long.parseLong(m.group(3));
+        if (m.group(1) == null)
+            return new long[] { -1, -1, total };
+        long first = Long.parseLong(m.group(1));
+        long last = Long.parseLong(m.group(2));
+        if (first > last || last >= total)
+            return null;
+        return new long[] { first, last, total };
+    }
+
+    /** A chunk received from the client, which must be closed once written. */
+    static final class Chunk implements Closeable {
+
+        private final File file;
+        private final long length;
+        private Budget.Reservation budget;
+
+        private Chunk(File file, long length, Budget.Reservation budget) {
+            this.file = file;
+            this.length = length;
+            this.budget = budget;
+        }
+
+        /** Deletes the staged data. */
+        @Override
+        public void close() {
+            if (budget != null) {
+                if (file.exists() && !file.delete())
+                    log.warn("Cannot delete: " + file);
+                budget.close();
+                budget = null;
+            }
+        }
+
+    }
+
+    /** Returns the maximum length of an upload. */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets the upload for a key, without starting one.
+     *
+     * @param key   the upload key, <code>session/version</code>
+     * @param total total length of the upload
+     * @return the upload, or <code>null</code> if there is none with that length
+     */
+    public Upload find(String key, long total) {
+        Upload u = uploads.get(key);
+        if (u == null || u.total != total)
+            return null;
+        u.lastUse = System.currentTimeMillis();
+        return u;
+    }
+
+    /** Counts the uploads in progress in a session, with the opening lock held. */
+    private int count(String session) {
+        int n = 0;
+        for (String key : uploads.keySet())
+            if (key.startsWith(session))
+                ++n;
+        return n;
+    }
+
+    /**
+     * Gets the upload for a key, or starts a new one.
+     * An existing upload with a different total length is discarded, as the client restarted with a different file.
+     *
+     * @param key   the upload key, <code>session/version</code>
+     * @param total total length of the upload
+     * @return the upload, or <code>null</code> if the session already has too many uploads in progress
+     */
+    public Upload open(String key, long total) throws IOException {
+        String session = key.substring(0, key.lastIndexOf('/') + 1);
+        while (true) {
+            Upload u = find(key, total);
+            if (u != null)
+                return u;
+            u = uploads.get(key);
+            if (u != null) {
+                discard(u);
+                continue;
+            }
+            Budget.Reservation budget = Budget.get().reserve(0, total);
+            // a file of its own, so that a discarded upload can't touch the one which replaced it
+            File f;
+            try {
+                f = File.createTempFile("upload", ".part", dir);
+            } catch (IOException e) {
+                budget.close();
+                throw e;
+            }
+            u = new Upload(key, f, total);
+            u.lock.lock();
+            try {
+                opening.lock();
+                try {
+                    boolean raced = uploads.containsKey(key); // with another chunk
+                    if (raced || count(session) >= perSession) {
+                        budget.close();
+                        if (!f.delete())
+                            log.warn("Cannot delete: " + f);
+                        if (raced)
+                            continue;
+                        return null;
+                    }
+                    uploads.put(key, u);
+                } finally {
+                    opening.unlock();
+                }
+                u.budget = budget;
+                try {
+                    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+                    try {
+                        raf.setLength(total);
+                    } finally {
+                        raf.close();
+                    }
+                } catch (IOException e) {
+                    discard(u);
+                    throw e;
+                }
+            } finally {
+                u.lock.unlock();
+            }
+            return u;
+        }
+    }
+
+    /**
+     * Receives a chunk into a temporary file, without holding any upload lock.
+     *
+     * @param is     the chunk data
+     * @param length the chunk length
+     * @param hash   the expected SHA-256 of the chunk
+     * @return the chunk, or <code>null</code> if its data didn't match the hash
+     * @throws EOFException if the data is shorter than declared
+     */
+    public Chunk stage(InputStream is, long length, String hash) throws IOException {
+        if (length <= 0 || length > maxSize)
+            throw new IllegalArgumentException("Invalid chunk length");
+        Budget.Reservation budget = Budget.get().reserve(0, length);
+        File f;
+        try {
+            f = File.createTempFile("chunk", ".tmp", dir);
+        } catch (IOException e) {
+            budget.close();
+            throw e;
+        }
+        Chunk c = new Chunk(f, length, budget);
+        boolean ok = false;
+        try {
+            MessageDigest digest = Util.sha256();
+            OutputStream os = new FileOutputStream(f);
+            try {
+                byte[] buf = new byte[(int) Math.min(65536, length)];
+                long left = length;
+                while (left > 0) {
+                    int len = is.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (len < 0)
+                        throw new EOFException("Chunk shorter than declared");
+                    digest.update(buf, 0, len);
+                    os.write(buf, 0, len);
+                    left -= len;
+                }
+            } finally {
+                os.close();
+            }
+            ok = Util.toHex(digest.digest()).equalsIgnoreCase(hash);
+            return ok ? c : null;
+        } finally {
+            if (!ok)
+                c.close();
+        }
+    }
+
+    /**
+     * Copies a staged chunk into the upload at the committed offset.
+     *
+     * @param u the upload, whose lock must be held
+     * @param c the chunk
+     */
+    public void write(Upload u, Chunk c) throws IOException {
+        if (u.closed || u.committed + c.length > u.total)
+            throw new IllegalArgumentException("Chunk exceeds upload length");
+        MessageDigest next;
+        try {
+            next = (MessageDigest) u.digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new InternalError("SHA-256 should be cloneable", e);
+        }
+        InputStream is = new FileInputStream(c.file);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(u.file, "rw");
+            try {
+                FileChannel ch = raf.getChannel();
+                long pos = u.committed;
+                byte[] buf = new byte[(int) Math.min(65536, c.length)];
+                long left = c.length;
+                while (left > 0) {
+                    int len = is.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (len < 0)
+                        throw new EOFException("Staged chunk truncated: " + c.file);
+                    next.update(buf, 0, len);
+                    ByteBuffer b = ByteBuffer.wrap(buf, 0, len);
+                    while (b.hasRemaining())
+                        pos += ch.write(b, pos);
+                    left -= len;
+                }
+                ch.force(false);
+            } finally {
+                raf.close();
+            }
+        } finally {
+            is.close();
+        }
+        u.digest = next;
+        u.committed += c.length;
+        u.lastUse = System.currentTimeMillis();
+    }
+
+    /**
+     * Moves a complete upload to its final place.
+     *
+     * @param u    the upload, whose lock must be held
+     * @param dest the destination
+     */
+    public void finish(Upload u, File dest) throws IOException {
+        if (!u.isComplete())
+            throw new IllegalStateException("Upload is not complete");
+        uploads.remove(u.key, u);
+        u.closed = true;
+        try {
+            if (!u.file.renameTo(dest))
+                throw new IOException("Cannot rename " + u.file + " to " + dest);
+        } finally {
+            u.release();
+        }
+    }
+
+    /** Abandons an upload, deleting its data. */
+    public void discard(Upload u) {
+        uploads.remove(u.key, u);
+        u.lock.lock();
+        try {
+            u.closed = true;
+            if (u.file.exists() && !u.file.delete())
+                log.warn("Cannot delete: " + u.file);
+            u.release();
+        } finally {
+            u.lock.unlock();
+        }
+    }
+
+    private void expire() {
+        long limit = System.currentTimeMillis() - timeout;
+        Iterator<Upload> i = uploads.values().iterator();
+        while (i.hasNext()) {
+            Upload u = i.next();
+            if (u.lastUse < limit) {
+                log.info("Upload timed out: " + u.key);
+                discard(u);
+            }
+        }
+    }
+
+}
@@ -5,19 +5,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.Objects;
-import java.util.regex.Matcher;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
 class Util {
 
     // token of 16*log2(62) = 95 bit of security
-    private static final int token_length = 16;
-    private static final char[] token_alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+    static final int token_length = 16;
+    static final char[] token_alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
 
     private static final SecureRandom srng = new SecureRandom();
     private static final int defaultBufferSize = 8192;
@@ -30,10 +28,7 @@ class Util {
      * @throws IOException if an error occurred.
      */
     public static void inToOut(InputStream is, OutputStream os) throws IOException {
-        byte[] buffer = new byte[defaultBufferSize];
-        int len = 0;
-        while ((len = is.read(buffer)) != -1)
-            os.write(buffer, 0, len);
+        Platform.copy(is, os);
     }
 
     public static byte[] inToArray(InputStream is) throws IOException {
@@ -46,28 +41,56 @@ class Util {
     }
 
     public static byte[] arrayToHash(byte[] data) {
+        return sha256().digest(data);
+    }
+
+    public static MessageDigest sha256() {
         try {
-            return MessageDigest.getInstance("SHA-256").digest(data);
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new InternalError("SHA-256 should be available", e);
         }
     }
 
-    public static final String DIGITS = "0123456789ABCDEF";
+    /**
+     * Returns a number of a configuration object.
+     *
+     * @param conf the configuration object
+     * @param key  the name of the number
+     * @param def  the value if missing
+     * @return the number, truncated if not integral
+     */
+    public static long number(JSON.Obj conf, String key, long def) {
+        Number n = conf.getNumber(key);
+        return (n == null) ? def : n.longValue();
+    }
+
+    /**
+     * Returns a factory of daemon threads, for background work which must not keep the JVM alive.
+     *
+     * @param name     the name of the threads
+     * @param priority the priority of the threads
+     * @return the factory
+     */
+    public static ThreadFactory daemonThreadFactory(final String name, final int priority) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                t.setPriority(priority);
+                return t;
+            }
+        };
+    }
 
     public static String toHex(byte[] buffer) {
-        if (buffer == null || buffer.length == 0)
-            return "";
-        StringBuilder str = new StringBuilder(buffer.length * 2);
-        for (byte b : buffer) {
-            str.append(DIGITS.charAt((b >> 4) & 0x0F));
-            str.append(DIGITS.charAt(b & 0x0F));
-        }
-        return str.toString();
+        return Platform.toHex(buffer);
     }
 
     /**
      * Returns an unique character string which an attacker can't guess.
+     * When running in a {@link Cluster} it also carries the id of the node which generated it.
      *
      * @return random value
      */
@@ -75,7 +98,21 @@ class Util {
         char[] buf = new char[token_length];
         for (int i = 0; i < token_length; i++)
             buf[i] = token_alphabet[srng.nextInt(token_alphabet.length)];
-        return new String(buf);
+        Cluster cluster = Cluster.get();
+        return (cluster == null) ? new String(buf) : cluster.seal(new String(buf));
+    }
+
+    /**
+     * Checks if a portion of a string could be a token returned by {@link #uniqueToken()}.
+     * Only length is checked, the characters are expected to be already validated by the caller.
+     *
+     * @param s     the string containing the token
+     * @param start start index, inclusive
+     * @param end   end index, exclusive
+     * @return true if it has the right length
+     */
+    public static boolean isTokenShaped(CharSequence s, int start, int end) {
+        return end - start == ((Cluster.get() == null) ? token_length : Cluster.TOKEN_LENGTH);
     }
 
     public static int random(int max) {
@@ -103,16 +140,26 @@ class Util {
         return f;
     }
 
-    public static JSON.Obj getConfig() {
-        try {
-            byte[] raw = Util.inToArray(Objects.requireNonNull(Util.class.getResourceAsStream("/config.json")));
-            return new JSON.Parser(new String(raw, StandardCharsets.UTF_8), true).getObject();
-        } catch (Exception e) {
-            throw new RuntimeException("Configuration error", e);
-        }
+    private static final Pattern versionFile = Pattern.compile("[.]ver-[0-9A-F]{4}[.]pdf$");
+
+    /**
+     * Checks if a file name is one generated by {@link #newFile(String)}.
+     *
+     * @param name file name
+     * @return true if it's the name of an uploaded version
+     */
+    public static boolean isVersionFile(String name) {
+        return versionFile.matcher(name).find();
     }
 
-    protected final static Pattern specialChars = Pattern.compile("[&<>'\"]");
+    /**
+     * Returns the configuration, see {@link Config}.
+     *
+     * @return the parsed configuration, which must not be modified
+     */
+    public static JSON.Obj getConfig() {
+        return Config.get().getJSON();
+    }
 
     /**
      * Escapes a string to be HTML 2.0 safe (ampersand, less than, greater than, apostrophe and quotes).
@@ -122,24 +169,27 @@ class Util {
     public static String specialChars(CharSequence str) {
         if (str == null)
             return "";
-        // would be nice to use m.appendReplacement() but it doesn't support StringBuilder until Java9
-        StringBuilder out = new StringBuilder();
-        Matcher m = specialChars.matcher(str);
+        final int len = str.length();
+        StringBuilder out = null; // only allocated if something needs escaping
         int pos = 0;
-        while (m.find()) {
-            int start = m.start();
-            out.append(str, pos, start);
-            switch (str.charAt(start)) {
-            case '&':  out.append("&amp;");  break;
-            case '<':  out.append("&lt;");   break;
-            case '>':  out.append("&gt;");   break;
-            case '\'': out.append("&#039;"); break; // "&apos;" is only defined starting from XHTML 1.0
-            case '"':  out.append("&quot;"); break;
-            default:   throw new RuntimeException("Switch out of sync with Pattern", null);
+        for (int i = 0; i < len; ++i) {
+            String entity;
+            switch (str.charAt(i)) {
+            case '&':  entity = "&amp;";  break;
+            case '<':  entity = "&lt;";   break;
+            case '>':  entity = "&gt;";   break;
+            case '\'': entity = "&#039;"; break; // "&apos;" is only defined starting from XHTML 1.0
+            case '"':  entity = "&quot;"; break;
+            default:   continue;
             }
-            pos = m.end();
+            if (out == null)
+                out = new StringBuilder(len + 16);
+            out.append(str, pos, i).append(entity);
+            pos = i + 1;
         }
-        out.append(str, pos, str.length());
+        if (out == null)
+            return str.toString();
+        out.append(str, pos, len);
         return out.toString();
     }
 
@@ -0,0 +1,329 @@
+package com.andxor.web2sign.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Document versions stored as delta chains.
+ * <p>
+ * PDF signatures are incremental updates, so a new version is the previous one plus some appended bytes: a delta
+ * version only stores those bytes in its <code>filename</code>, with <code>parent</code> being the filename of the
+ * version it was appended to. Full documents are rebuilt on download, and chains longer than
+ * <code>maxDeltaChain</code> (from <code>config.json</code>, default 8) are compacted in background into a full copy,
+ * whose name is stored in <code>data</code>.
+ */
+final class Versions {
+
+    private static final Logger log = LoggerFactory.getLogger(Versions.class);
+
+    public static final String PARENT = "parent";
+    public static final String DATA = "data";
+
+    private static final int DEFAULT_MAX_CHAIN = 8;
+    private static final int SHA256_HEX_LENGTH = 64;
+
+    // SHA-256 of files whose configured hash is a different algorithm, by physical filename
+    private static final Map<String, String> hashes = new ConcurrentHashMap<String, String>();
+
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(Util.daemonThreadFactory("w2s-compactor", Thread.MIN_PRIORITY));
+
+    private static volatile int maxChain = -1;
+
+    private Versions() {
+    }
+
+    public static class HashMismatchException extends Exception {
+        private HashMismatchException(String error) {
+            super(error);
+        }
+    }
+
+    private static int maxChain() {
+        int max = maxChain;
+        if (max < 0) {
+            Number n = Util.getConfig().getNumber("maxDeltaChain");
+            maxChain = max = (n == null) ? DEFAULT_MAX_CHAIN : n.intValue();
+        }
+        return max;
+    }
+
+    /** Returns the name of the file actually containing the version data (a delta, or the full document). */
+    public static String physicalName(JSON.Obj info) {
+        String data = info.getString(DATA);
+        return (data != null) ? data : info.getString("filename");
+    }
+
+    private static JSON.Obj find(ArrayList<JSON.Obj> files, String filename) throws IOException {
+        synchronized (files) {
+            for (int i = files.size() - 1; i >= 0; --i)
+                if (filename.equals(files.get(i).getString("filename")))
+                    return files.get(i);
+        }
+        throw new IOException("Missing parent version: " + filename);
+    }
+
+    /** Returns the files to be concatenated to obtain the full document, starting from the full base. */
+    private static List<File> chain(ArrayList<JSON.Obj> files, JSON.Obj info) throws IOException {
+        ArrayList<File> chain = new ArrayList<File>();
+        while (true) {
+            chain.add(Util.getFile(physicalName(info)));
+            String parent = info.getString(PARENT);
+            if (parent == null)
+                break;
+            info = find(files, parent);
+        }
+        Collections.reverse(chain);
+        return chain;
+    }
+
+    /**
+     * Opens the full content of a version, rebuilding it from the delta chain if needed.
+     *
+     * @param files the session files, where parents are searched
+     * @param info  the version to open
+     * @return the full document content
+     */
+    public static InputStream open(ArrayList<JSON.Obj> files, JSON.Obj info) throws IOException {
+        List<File> chain = chain(files, info);
+        if (chain.size() == 1)
+            return new FileInputStream(chain.get(0));
+        // open them all at once, so that a concurrent compaction can't change the chain while reading it
+        ArrayList<InputStream> streams = new ArrayList<InputStream>(chain.size());
+        try {
+            for (File f : chain)
+                streams.add(new FileInputStream(f));
+        } catch (IOException e) {
+            for (InputStream is : streams)
+                is.close();
+            throw e;
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /** Returns the length of the full content of a version. */
+    public static long length(ArrayList<JSON.Obj> files, JSON.Obj info) throws IOException {
+        long length = 0;
+        for (File f : chain(files, info))
+            length += f.length();
+        return length;
+    }
+
+    private static void digest(MessageDigest md, InputStream is) throws IOException {
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = is.read(buf)) != -1)
+                md.update(buf, 0, len);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Returns the SHA-256 of a version, which is the hash used by Web2Sign; configured files may use a different
+     * algorithm, in that case it is computed once and cached.
+     */
+    public static String hash(ArrayList<JSON.Obj> files, JSON.Obj info) throws IOException {
+        String hash = info.getString("hash");
+        if (hash != null && hash.length() == SHA256_HEX_LENGTH)
+            return hash;
+        String name = physicalName(info);
+        hash = hashes.get(name);
+        if (hash == null) {
+            MessageDigest md = Util.sha256();
+            digest(md, open(files, info));
+            hash = Util.toHex(md.digest());
+            hashes.put(name, hash);
+        }
+        return hash;
+    }
+
+    /** Writes a stream to a new file while digesting it, deleting the file if incomplete. */
+    private static void write(File f, MessageDigest md, InputStream is) throws IOException {
+        boolean done = false;
+        OutputStream os = new FileOutputStream(f);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = is.read(buf)) != -1) {
+                md.update(buf, 0, len);
+                os.write(buf, 0, len);
+            }
+            done = true;
+        } finally {
+            os.close();
+            if (!done && !f.delete())
+                log.warn("Cannot delete: " + f);
+        }
+    }
+
+    /**
+     * Stores a new full version, streaming it to disk.
+     *
+     * @param base the version it replaces
+     * @param is   the new content
+     * @return the new version info, still to be added to the session files
+     */
+    public static JSON.Obj store(JSON.Obj base, InputStream is) throws IOException {
+        MessageDigest md = Util.sha256();
+        File newFile = Util.newFile(base.getString("filename"));
+        write(newFile, md, is);
+        JSON.Obj info = JSON.Obj.merge(base, JSON.obj(
+                "filename", newFile.getName(),
+                "hash", Util.toHex(md.digest())
+        ));
+        info.remove(PARENT);
+        info.remove(DATA);
+        return info;
+    }
+
+    /**
+     * Stores a new version made by appending some bytes to an existing one.
+     *
+     * @param files    the session files
+     * @param base     the version the bytes are appended to
+     * @param baseHash the SHA-256 of <code>base</code> as known by the client
+     * @param newHash  the expected SHA-256 of the new version, may be <code>null</code> if unknown
+     * @param is       the appended bytes
+     * @return the new version info, still to be added to <code>files</code>
+     * @throws HashMismatchException if the base is not the expected one, or the result has not the expected hash
+     */
+    public static JSON.Obj appendDelta(ArrayList<JSON.Obj> files, JSON.Obj base, String baseHash, String newHash, InputStream is) throws IOException, HashMismatchException {
+        if (!hash(files, base).equalsIgnoreCase(baseHash))
+            throw new HashMismatchException("Base version has a different hash");
+        MessageDigest md = Util.sha256();
+        digest(md, open(files, base));
+        File newFile = Util.newFile(base.getString("filename"));
+        write(newFile, md, is);
+        String hash = Util.toHex(md.digest());
+        if (newHash != null && !hash.equalsIgnoreCase(newHash)) {
+            if (!newFile.delete())
+                log.warn("Cannot delete: " + newFile);
+            throw new HashMismatchException("New version has a different hash");
+        }
+        JSON.Obj info = JSON.Obj.merge(base, JSON.obj(
+                "filename", newFile.getName(),
+                "hash", hash,
+                PARENT, base.getString("filename")
+        ));
+        info.remove(DATA);
+        return info;
+    }
+
+    /**
+     * Returns the files owned by a session, which are the ones of the uploaded versions.
+     *
+     * @param files the session files
+     * @return physical names of the files, relative to <code>root</code>
+     */
+    public static List<String> owned(List<JSON.Obj> files) {
+        ArrayList<String> owned = new ArrayList<String>();
+        synchronized (files) {
+            for (JSON.Obj info : files) {
+                String filename = info.getString("filename");
+                if (Util.isVersionFile(filename))
+                    owned.add(filename);
+                if (info.getString(DATA) != null)
+                    owned.add(info.getString(DATA));
+            }
+        }
+        return owned;
+    }
+
+    private static int depth(ArrayList<JSON.Obj> files, JSON.Obj info) throws IOException {
+        int depth = 0;
+        while (info.getString(PARENT) != null) {
+            ++depth;
+            info = find(files, info.getString(PARENT));
+        }
+        return depth;
+    }
+
+    /**
+     * Schedules the compaction of a version into a full copy, if its delta chain is too long.
+     *
+     * @param token session token, to save it after the compaction
+     * @param files the session files
+     * @param info  the version just added
+     */
+    public static void compactIfNeeded(final String token, final ArrayList<JSON.Obj> files, final JSON.Obj info) throws IOException {
+        if (depth(files, info) <= maxChain())
+            return;
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact(token, files, info);
+                } catch (Exception e) {
+                    log.error("Compaction failed for " + info.getString("filename"), e);
+                }
+            }
+        });
+    }
+
+    private static void compact(String token, ArrayList<JSON.Obj> files, JSON.Obj info) throws IOException {
+        // uploads come first: if there is no space now, the next delta upload will try again
+        Budget.Reservation budget = Budget.get().tryReserve(0, length(files, info));
+        if (budget == null) {
+            log.info("Compaction postponed, disk budget exhausted: " + info.getString("filename"));
+            return;
+        }
+        File full = Util.newFile(info.getString("filename"));
+        try {
+            InputStream is = open(files, info);
+            try {
+                OutputStream os = new FileOutputStream(full);
+                try {
+                    Util.inToOut(is, os);
+                } finally {
+                    os.close();
+                }
+            } finally {
+                is.close();
+            }
+        } finally {
+            budget.close();
+        }
+        JSON.Obj compacted = JSON.Obj.merge(info, JSON.obj(DATA, full.getName()));
+        compacted.remove(PARENT);
+        boolean found;
+        synchronized (files) {
+            int i = files.size() - 1;
+            while (i >= 0 && files.get(i) != info)
+                --i;
+            found = i >= 0;
+            if (found)
+                files.set(i, compacted);
+        }
+        if (!found) {
+            // should never happen, as versions are never removed from a session
+            if (!full.delete())
+                log.warn("Cannot delete: " + full);
+            return;
+        }
+        log.debug("Compacted " + info.getString("filename") + " into " + full.getName());
+        // the delta isn't referenced anymore, unless the session has been taken over meanwhile: the new owner only
+        // knows about the delta, and is the only one which may release it
+        if (Store.save(token))
+            Reclaimer.get().release(Collections.singleton(physicalName(info)));
+        else
+            Reclaimer.get().release(Collections.singleton(physicalName(compacted)));
+    }
+
+}
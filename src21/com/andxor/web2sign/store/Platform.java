@@ -0,0 +1,78 @@
+package com.andxor.web2sign.store;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HexFormat;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Operations which newer Java versions implement better, picked at runtime.
+ * <p>
+ * This is the Java 21 implementation, used from <code>META-INF/versions/21</code> of the multi-release jar; the
+ * Java 8 one in <code>src</code> must have the same methods.
+ */
+final class Platform {
+
+    private static final HexFormat HEX = HexFormat.of().withUpperCase();
+
+    private Platform() {
+    }
+
+    /** Returns the Java version this implementation was compiled for. */
+    public static int version() {
+        return 21;
+    }
+
+    /**
+     * Creates an executor which runs each task in a new virtual thread.
+     *
+     * @param name prefix of the thread names
+     * @return the executor, <code>null</code> if virtual threads are not available
+     */
+    public static ExecutorService newVirtualThreadExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+    }
+
+    /**
+     * Copies a stream into another one.
+     * Files are copied with {@link FileChannel#transferTo}, which can avoid copying data through the heap
+     * (and on Linux uses <code>sendfile</code> or <code>copy_file_range</code> when writing to a file).
+     *
+     * @param is the source
+     * @param os the destination
+     * @return the number of bytes copied
+     */
+    public static long copy(InputStream is, OutputStream os) throws IOException {
+        if (!(is instanceof FileInputStream))
+            return is.transferTo(os);
+        FileChannel in = ((FileInputStream) is).getChannel();
+        WritableByteChannel out = (os instanceof FileOutputStream) ? ((FileOutputStream) os).getChannel() : Channels.newChannel(os);
+        long pos = in.position(), size = in.size(), total = 0;
+        while (pos + total < size) {
+            long n = in.transferTo(pos + total, size - pos - total, out);
+            if (n <= 0)
+                break; // truncated meanwhile
+            total += n;
+        }
+        in.position(pos + total);
+        return total;
+    }
+
+    /**
+     * Encodes bytes in uppercase hexadecimal.
+     *
+     * @param buffer the bytes, may be <code>null</code>
+     * @return the hexadecimal string, empty if there are no bytes
+     */
+    public static String toHex(byte[] buffer) {
+        return (buffer == null) ? "" : HEX.formatHex(buffer);
+    }
+
+}